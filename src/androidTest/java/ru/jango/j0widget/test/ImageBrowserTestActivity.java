@@ -24,7 +24,7 @@ public class ImageBrowserTestActivity extends Activity {
         findViewById(R.id.large_pic).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                imgb.setImageResource(R.drawable.large);
+                imgb.loadImageResource(R.drawable.large);
             }
         });
     }
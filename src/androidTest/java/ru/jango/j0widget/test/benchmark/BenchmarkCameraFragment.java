@@ -0,0 +1,51 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.test.benchmark;
+
+import ru.jango.j0widget.camera.fragment.SimpleCameraFragment;
+
+/**
+ * {@link ru.jango.j0widget.camera.fragment.SimpleCameraFragment}, that is fed by
+ * {@link FakeCameraSource} instead of a camera: pictures are passed into the same
+ * {@link #onPictureTaken(byte[], android.hardware.Camera)}, that the camera calls, so they go
+ * through the real processing pipeline of the fragment.
+ * <p/>
+ * Fragment doesn't need to be attached, but it should be created and fed on a looper thread -
+ * processing results are delivered there, like onto the main thread in the real fragment.
+ */
+public class BenchmarkCameraFragment extends SimpleCameraFragment {
+
+    /**
+     * Passes the picture into the fragment, as if the camera has taken it.
+     */
+    public void deliverPicture(byte[] data) {
+        // there is no camera, that should be restarted after the capture
+        captureFromPreview = true;
+        onPictureTaken(data, null);
+    }
+
+    /**
+     * There is no camera and no display - pictures are not rotated.
+     */
+    @Override
+    protected int getRotation() {
+        return 0;
+    }
+}
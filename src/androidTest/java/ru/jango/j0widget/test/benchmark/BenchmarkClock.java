@@ -0,0 +1,48 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.test.benchmark;
+
+/**
+ * Source of time for benchmark scripts. {@link #SYSTEM} really waits, {@link ManualClock} only
+ * moves it's time forward, so scripts run as fast as possible and are reproducible.
+ */
+public interface BenchmarkClock {
+
+    public static final BenchmarkClock SYSTEM = new BenchmarkClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void waitUntil(long nanos) throws InterruptedException {
+            final long delay = nanos - System.nanoTime();
+            if (delay > 0)
+                Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+        }
+    };
+
+    public long nanoTime();
+
+    /**
+     * Blocks till the clock reaches the specified moment.
+     */
+    public void waitUntil(long nanos) throws InterruptedException;
+}
@@ -0,0 +1,336 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.test.benchmark;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import ru.jango.j0widget.LatencyHistogram;
+import ru.jango.j0widget.R;
+import ru.jango.j0widget.camera.fragment.SimpleCameraFragment;
+
+/**
+ * Measures throughput of the capture processing pipeline of
+ * {@link ru.jango.j0widget.camera.fragment.SimpleCameraFragment}: pictures from
+ * {@link FakeCameraSource} are passed into {@link BenchmarkCameraFragment} exactly like the
+ * camera passes them, so the fragment's own processing pool, settings and result delivery are
+ * measured. Fragment lives on a looper thread, like on the main one in an application.
+ * <p/>
+ * Every run reports captures per second, emission-to-result latency percentiles and peak heap
+ * usage. Source's {@link BenchmarkClock} only paces emission; latencies and run duration are
+ * always measured by {@link System#nanoTime()}, so they are real even if the script is replayed
+ * by {@link ManualClock}. Nothing here needs a camera, so benchmarks run on an emulator or a CI
+ * machine - see {@link CaptureBenchmarkTest}.
+ */
+public class CaptureBenchmark {
+
+    private static final long HEAP_SAMPLING_PERIOD = 5;
+
+    private static final int BURST_COUNT = 20;
+    private static final int PACED_COUNT = 10;
+    private static final int PACED_FPS = 2;
+    private static final int MAX_PICTURE_BYTES = 100 * 1024;
+
+    public static class Settings {
+
+        private final String name;
+        private final int parallelism;
+        private final Point pictureSize;
+        private final Point thumbnailSize;
+        private final int maxPictureByteSize;
+
+        /**
+         * @param name                  name for the report
+         * @param parallelism           see {@link SimpleCameraFragment#setProcessingParallelism(int)}
+         * @param pictureSize           see {@link SimpleCameraFragment#setPictureSize(android.graphics.Point)}
+         * @param thumbnailSize         see {@link SimpleCameraFragment#setThumbnailSize(android.graphics.Point)}; may be NULL
+         * @param maxPictureByteSize    see {@link SimpleCameraFragment#setMaxPictureByteSize(int)}
+         */
+        public Settings(String name, int parallelism, Point pictureSize, Point thumbnailSize, int maxPictureByteSize) {
+            this.name = name;
+            this.parallelism = Math.max(1, parallelism);
+            this.pictureSize = pictureSize;
+            this.thumbnailSize = thumbnailSize;
+            this.maxPictureByteSize = maxPictureByteSize;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        private void apply(SimpleCameraFragment fragment) {
+            fragment.setProcessingParallelism(parallelism);
+            fragment.setPictureSize(pictureSize);
+            fragment.setThumbnailSize(thumbnailSize);
+            fragment.setMaxPictureByteSize(maxPictureByteSize);
+        }
+
+        @Override
+        public String toString() {
+            return name + " [parallelism=" + parallelism + " picture=" + pictureSize
+                    + " thumbnail=" + thumbnailSize + " maxBytes=" + maxPictureByteSize + "]";
+        }
+    }
+
+    public static class Result {
+
+        private final Settings settings;
+        private final LatencyHistogram latency;
+        private int captures;
+        private int failed;
+        private long durationNanos;
+        private long peakHeapBytes;
+        private long peakNativeHeapBytes;
+
+        private Result(Settings settings) {
+            this.settings = settings;
+            this.latency = new LatencyHistogram();
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+
+        public int getCaptures() {
+            return captures;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public long getDuration() {
+            return durationNanos / 1000000L;
+        }
+
+        public double getCapturesPerSecond() {
+            return durationNanos == 0 ? 0 : captures * 1000000000d / durationNanos;
+        }
+
+        /**
+         * Returns histogram of emission-to-result times in microseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return latency.snapshot();
+        }
+
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        public long getPeakNativeHeapBytes() {
+            return peakNativeHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return settings + "\n"
+                    + "  captures=" + captures + " failed=" + failed + " duration=" + getDuration() + "ms"
+                    + " captures/sec=" + String.format("%.2f", getCapturesPerSecond()) + "\n"
+                    + "  latency: " + latency.dump("us") + "\n"
+                    + "  peak heap=" + (peakHeapBytes / 1024) + "KB"
+                    + " peak native heap=" + (peakNativeHeapBytes / 1024) + "KB";
+        }
+    }
+
+    /**
+     * Returns the standard set of pool and processing settings, that are compared by
+     * {@link CaptureBenchmarkActivity} and {@link CaptureBenchmarkTest}.
+     */
+    public static Settings[] createDefaultSettings() {
+        final Point picture = new Point(1024, 768);
+        final Point thumbnail = new Point(50, 50);
+
+        return new Settings[] {
+                new Settings("single thread", 1, picture, thumbnail, 0),
+                new Settings("two threads", 2, picture, thumbnail, 0),
+                new Settings("four threads", 4, picture, thumbnail, 0),
+                new Settings("two threads, no thumbnail", 2, picture, null, 0),
+                new Settings("two threads, size limited", 2, picture, thumbnail, MAX_PICTURE_BYTES)
+        };
+    }
+
+    /**
+     * Creates a source, that emits pictures without pauses - for max throughput. Burst doesn't
+     * need to wait, so {@link ManualClock} is used.
+     */
+    public static FakeCameraSource createBurstSource(Resources resources) throws IOException {
+        return new FakeCameraSource(resources, new ManualClock())
+                .addSegment(BURST_COUNT, 0, R.drawable.small, R.drawable.large);
+    }
+
+    /**
+     * Creates a source, that emits pictures at camera-like rates in real time.
+     */
+    public static FakeCameraSource createPacedSource(Resources resources) throws IOException {
+        return new FakeCameraSource(resources, BenchmarkClock.SYSTEM)
+                .addSegment(PACED_COUNT, PACED_FPS, R.drawable.large)
+                .addSegment(PACED_COUNT, PACED_FPS * 2, R.drawable.small);
+    }
+
+    /**
+     * Runs the whole script of the source with the specified settings. Blocks till all the
+     * pictures are processed; should not be called on the main thread.
+     */
+    public Result run(FakeCameraSource source, final Settings settings) throws InterruptedException {
+        final Result result = new Result(settings);
+        final CountDownLatch done = new CountDownLatch(source.getTotalCount());
+        final Map<URI, Long> emissions = new HashMap<URI, Long>();
+        final long[] lastResult = new long[1];
+        // emission moment of the picture, that is being delivered; only for the fragment thread
+        final long[] delivering = new long[1];
+        final HeapSampler heapSampler = new HeapSampler();
+
+        final HandlerThread fragmentThread = new HandlerThread(CaptureBenchmark.class.getSimpleName());
+        fragmentThread.start();
+        final Handler fragmentHandler = new Handler(fragmentThread.getLooper());
+
+        final SimpleCameraFragment.CameraFragmentListener listener = new SimpleCameraFragment.CameraFragmentListener() {
+            private int index;
+
+            @Override
+            public URI onPictureTaken() {
+                final URI dataID = URI.create("file:///benchmark/" + (index++) + ".jpg");
+                synchronized (result) {
+                    emissions.put(dataID, delivering[0]);
+                }
+                return dataID;
+            }
+
+            @Override
+            public void onProcessingFinished(URI dataID, byte[] data, Bitmap thumbnail) {
+                final long now = System.nanoTime();
+                heapSampler.sample();
+                if (thumbnail != null) thumbnail.recycle();
+
+                synchronized (result) {
+                    result.captures++;
+                    final Long emitted = emissions.remove(dataID);
+                    if (emitted != null) result.latency.record((now - emitted) / 1000L);
+                    lastResult[0] = Math.max(lastResult[0], now);
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onProcessingFailed(URI dataID, Exception e) {
+                synchronized (result) {
+                    result.failed++;
+                    emissions.remove(dataID);
+                    lastResult[0] = Math.max(lastResult[0], System.nanoTime());
+                }
+                done.countDown();
+            }
+        };
+
+        // fragment takes it's handlers from the creating thread
+        final BenchmarkCameraFragment[] fragment = new BenchmarkCameraFragment[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        fragmentHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                fragment[0] = new BenchmarkCameraFragment();
+                fragment[0].setCameraFragmentListener(listener);
+                settings.apply(fragment[0]);
+                created.countDown();
+            }
+        });
+        created.await();
+
+        System.gc();
+        heapSampler.start();
+
+        source.rewind();
+        final long start = System.nanoTime();
+        try {
+            byte[] picture;
+            while ((picture = source.nextPicture()) != null) {
+                final byte[] data = picture;
+                final long emitted = System.nanoTime();
+                fragmentHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        delivering[0] = emitted;
+                        fragment[0].deliverPicture(data);
+                    }
+                });
+            }
+
+            done.await();
+        } finally {
+            heapSampler.finish();
+            fragmentThread.quit();
+        }
+
+        synchronized (result) {
+            result.durationNanos = Math.max(0, lastResult[0] - start);
+        }
+        result.peakHeapBytes = heapSampler.peakHeap;
+        result.peakNativeHeapBytes = heapSampler.peakNativeHeap;
+        return result;
+    }
+
+    /**
+     * Periodically samples used Java heap and native heap (bitmaps live there before API 11).
+     */
+    private static class HeapSampler extends Thread {
+
+        private volatile boolean running = true;
+        private long peakHeap;
+        private long peakNativeHeap;
+
+        public HeapSampler() {
+            super(HeapSampler.class.getSimpleName());
+            setDaemon(true);
+        }
+
+        public synchronized void sample() {
+            final Runtime runtime = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+            peakNativeHeap = Math.max(peakNativeHeap, Debug.getNativeHeapAllocatedSize());
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try { Thread.sleep(HEAP_SAMPLING_PERIOD); }
+                catch (InterruptedException e) { return; }
+            }
+        }
+
+        public void finish() throws InterruptedException {
+            running = false;
+            interrupt();
+            join();
+            sample();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.test.benchmark;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Runs {@link CaptureBenchmark} for a set of pool and processing settings and prints results on
+ * the screen and into the log. Every setting is run twice: as a burst without pauses (max
+ * throughput) and at camera-like rates. The same runs are done on CI by {@link CaptureBenchmarkTest}.
+ */
+public class CaptureBenchmarkActivity extends Activity {
+
+    private TextView output;
+    private Thread runner;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        output = new TextView(this);
+        final ScrollView scroll = new ScrollView(this);
+        scroll.addView(output);
+        setContentView(scroll);
+
+        runner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBenchmarks();
+            }
+        }, CaptureBenchmarkActivity.class.getSimpleName());
+        runner.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        runner.interrupt();
+    }
+
+    private void runBenchmarks() {
+        final CaptureBenchmark benchmark = new CaptureBenchmark();
+        try {
+            for (CaptureBenchmark.Settings settings : CaptureBenchmark.createDefaultSettings()) {
+                report("burst", benchmark.run(CaptureBenchmark.createBurstSource(getResources()), settings));
+                report("paced", benchmark.run(CaptureBenchmark.createPacedSource(getResources()), settings));
+            }
+
+            report("done");
+        } catch (InterruptedException e) {
+            LogUtil.d(CaptureBenchmarkActivity.class, "Benchmark interrupted");
+        } catch (Exception e) {
+            LogUtil.e(CaptureBenchmarkActivity.class, "Benchmark failed: " + e);
+            report("failed: " + e);
+        }
+    }
+
+    private void report(String mode, CaptureBenchmark.Result result) {
+        report(mode + ": " + result);
+    }
+
+    private void report(final String text) {
+        LogUtil.i(CaptureBenchmarkActivity.class, text);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                output.append(text + "\n\n");
+            }
+        });
+    }
+}
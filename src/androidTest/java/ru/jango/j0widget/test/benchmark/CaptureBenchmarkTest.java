@@ -0,0 +1,67 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package ru.jango.j0widget.test.benchmark;
+
+import android.content.res.Resources;
+import android.test.InstrumentationTestCase;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Runs {@link CaptureBenchmark} with {@link CaptureBenchmark#createDefaultSettings()} from the
+ * instrumentation, so the benchmark could be started on CI without any UI (for example
+ * 'gradlew connectedAndroidTest' on an emulator). Results are written into the log; test checks
+ * only, that every picture has passed the pipeline - speed is not asserted, it depends on the
+ * machine too much.
+ */
+public class CaptureBenchmarkTest extends InstrumentationTestCase {
+
+    private CaptureBenchmark benchmark;
+    private Resources resources;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        benchmark = new CaptureBenchmark();
+        resources = getInstrumentation().getContext().getResources();
+    }
+
+    public void testBurst() throws Exception {
+        for (CaptureBenchmark.Settings settings : CaptureBenchmark.createDefaultSettings()) {
+            final FakeCameraSource source = CaptureBenchmark.createBurstSource(resources);
+            check("burst", source, benchmark.run(source, settings));
+        }
+    }
+
+    public void testPaced() throws Exception {
+        for (CaptureBenchmark.Settings settings : CaptureBenchmark.createDefaultSettings()) {
+            final FakeCameraSource source = CaptureBenchmark.createPacedSource(resources);
+            check("paced", source, benchmark.run(source, settings));
+        }
+    }
+
+    private void check(String mode, FakeCameraSource source, CaptureBenchmark.Result result) {
+        LogUtil.i(CaptureBenchmarkTest.class, mode + ": " + result);
+
+        final String name = mode + " " + result.getSettings().getName();
+        assertEquals(name + " failed", 0, result.getFailed());
+        assertEquals(name + " captures", source.getTotalCount(), result.getCaptures());
+        assertEquals(name + " latencies", result.getCaptures(), result.getLatency().getCount());
+    }
+}
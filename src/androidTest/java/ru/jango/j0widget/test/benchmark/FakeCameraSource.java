@@ -0,0 +1,150 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.test.benchmark;
+
+import android.content.res.Resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scriptable replacement of the camera: emits JPEGs from resources (for example
+ * {@link ru.jango.j0widget.R.drawable#small} and {@link ru.jango.j0widget.R.drawable#large}) with
+ * configured rates. Script is a sequence of segments - {@link #addSegment(int, int, int...)};
+ * every segment emits the specified number of pictures, cycling through it's resources.
+ * <p/>
+ * Resources are read once, before the run; emission moments are counted by
+ * {@link BenchmarkClock}. With {@link ManualClock} the script is replayed instantly and
+ * reproducibly - pauses are skipped, but the pictures are emitted in the same order.
+ */
+public class FakeCameraSource {
+
+    private final Resources resources;
+    private final BenchmarkClock clock;
+    private final List<Segment> segments;
+    private final Map<Integer, byte[]> pictures;
+
+    private int segmentIndex;
+    private int emittedInSegment;
+    private long nextEmission;
+
+    public FakeCameraSource(Resources resources, BenchmarkClock clock) {
+        this.resources = resources;
+        this.clock = clock;
+        this.segments = new ArrayList<Segment>();
+        this.pictures = new HashMap<Integer, byte[]>();
+    }
+
+    public BenchmarkClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Adds a segment into the script.
+     *
+     * @param count     number of pictures to emit
+     * @param fps       pictures per second; 0 means 'without pauses'
+     * @param resIds    raw JPEG resources, that are emitted by turns
+     */
+    public FakeCameraSource addSegment(int count, int fps, int... resIds) throws IOException {
+        if (resIds.length == 0)
+            throw new IllegalArgumentException("At least one picture is needed");
+
+        for (int resId : resIds)
+            if (!pictures.containsKey(resId))
+                pictures.put(resId, readResource(resId));
+
+        segments.add(new Segment(count, fps, resIds));
+        return this;
+    }
+
+    public int getTotalCount() {
+        int total = 0;
+        for (Segment segment : segments)
+            total += segment.count;
+
+        return total;
+    }
+
+    /**
+     * Starts the script from the beginning.
+     */
+    public void rewind() {
+        segmentIndex = 0;
+        emittedInSegment = 0;
+        nextEmission = clock.nanoTime();
+    }
+
+    /**
+     * Waits for the next emission moment and returns the next picture. Returned array should not
+     * be modified - it's shared between emissions.
+     *
+     * @return JPEG data, or NULL if the script is over
+     */
+    public byte[] nextPicture() throws InterruptedException {
+        while (segmentIndex < segments.size() && emittedInSegment >= segments.get(segmentIndex).count) {
+            segmentIndex++;
+            emittedInSegment = 0;
+        }
+        if (segmentIndex >= segments.size())
+            return null;
+
+        final Segment segment = segments.get(segmentIndex);
+        clock.waitUntil(nextEmission);
+        nextEmission = Math.max(nextEmission, clock.nanoTime()) + segment.intervalNanos;
+
+        final int resId = segment.resIds[emittedInSegment % segment.resIds.length];
+        emittedInSegment++;
+        return pictures.get(resId);
+    }
+
+    private byte[] readResource(int resId) throws IOException {
+        final InputStream in = resources.openRawResource(resId);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Segment {
+
+        private final int count;
+        private final long intervalNanos;
+        private final int[] resIds;
+
+        public Segment(int count, int fps, int[] resIds) {
+            this.count = Math.max(0, count);
+            this.intervalNanos = fps > 0 ? 1000000000L / fps : 0;
+            this.resIds = resIds.clone();
+        }
+    }
+}
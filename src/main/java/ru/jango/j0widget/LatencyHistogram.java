@@ -0,0 +1,232 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget;
+
+/**
+ * In-memory histogram of non-negative values (usually latencies) with fixed relative precision,
+ * like HdrHistogram does. Values are put into log-linear buckets: every power of two range is
+ * split into the same number of linear sub-buckets, so memory usage is small and doesn't depend
+ * on the number of recorded values, and percentiles have relative error about
+ * 1 / 2^(subBucketBits - 1).
+ * <p/>
+ * Recording doesn't allocate anything. Methods are synchronized, so values could be recorded from
+ * different threads; {@link #snapshot()} returns an independent copy for reading.
+ */
+public class LatencyHistogram {
+
+    public static final int DEFAULT_SUB_BUCKET_BITS = 6;
+    public static final long DEFAULT_MAX_VALUE = 60L * 60L * 1000L * 1000L;
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int halfCount;
+    private final long maxValue;
+    private final long[] counts;
+
+    private long totalCount;
+    private long totalSum;
+    private long min;
+    private long max;
+
+    /**
+     * Creates histogram for values from 0 to {@link #DEFAULT_MAX_VALUE} (one hour in
+     * microseconds) with about 3% precision.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_MAX_VALUE, DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param maxValue          max value, that could be recorded precisely; greater values are
+     *                          counted in the last bucket (but {@link #getMax()} stays exact)
+     * @param subBucketBits     precision - number of linear sub-buckets in every power of two
+     *                          range is 2^(subBucketBits - 1)
+     */
+    public LatencyHistogram(long maxValue, int subBucketBits) {
+        this.subBucketBits = Math.max(2, Math.min(subBucketBits, 16));
+        this.subBucketCount = 1 << this.subBucketBits;
+        this.halfCount = subBucketCount / 2;
+        this.maxValue = Math.max(maxValue, subBucketCount);
+        this.counts = new long[indexOf(this.maxValue) + 1];
+
+        reset();
+    }
+
+    private LatencyHistogram(LatencyHistogram src) {
+        this.subBucketBits = src.subBucketBits;
+        this.subBucketCount = src.subBucketCount;
+        this.halfCount = src.halfCount;
+        this.maxValue = src.maxValue;
+        this.counts = src.counts.clone();
+        this.totalCount = src.totalCount;
+        this.totalSum = src.totalSum;
+        this.min = src.min;
+        this.max = src.max;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Recording
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Records a value. Negative values are treated as 0.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+
+        counts[indexOf(Math.min(value, maxValue))]++;
+        totalCount++;
+        totalSum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = 0;
+
+        totalCount = 0;
+        totalSum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Adds all values of another histogram with the same configuration into this one.
+     */
+    public void add(LatencyHistogram other) {
+        final LatencyHistogram src = other.snapshot();
+        if (src.counts.length != counts.length || src.subBucketBits != subBucketBits)
+            throw new IllegalArgumentException("Histograms have different configuration");
+
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += src.counts[i];
+
+            totalCount += src.totalCount;
+            totalSum += src.totalSum;
+            min = Math.min(min, src.min);
+            max = Math.max(max, src.max);
+        }
+    }
+
+    /**
+     * Returns independent copy of the histogram.
+     */
+    public synchronized LatencyHistogram snapshot() {
+        return new LatencyHistogram(this);
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Reading
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public synchronized long getCount() {
+        return totalCount;
+    }
+
+    public synchronized long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return totalCount == 0 ? 0 : ((double) totalSum) / totalCount;
+    }
+
+    /**
+     * Returns value, that is not less than the specified percent of recorded values. Result is
+     * the upper bound of the bucket, so it's never less than the exact value and is not greater
+     * than {@link #getMax()}.
+     *
+     * @param percentile    percentile in [0..100]
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+
+        final double p = Math.max(0, Math.min(percentile, 100));
+        final long countAtPercentile = Math.max(1, (long) Math.ceil(p / 100d * totalCount));
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= countAtPercentile)
+                return Math.max(getMin(), Math.min(highestValueOf(i), max));
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns short one-line summary: count, min, p50, p90, p99, max and mean.
+     *
+     * @param unit  name of values unit, that would be appended to every value; may be empty
+     */
+    public synchronized String dump(String unit) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("count=").append(totalCount)
+                .append(" min=").append(getMin()).append(unit)
+                .append(" p50=").append(getValueAtPercentile(50)).append(unit)
+                .append(" p90=").append(getValueAtPercentile(90)).append(unit)
+                .append(" p99=").append(getValueAtPercentile(99)).append(unit)
+                .append(" max=").append(max).append(unit)
+                .append(" mean=").append(Math.round(getMean())).append(unit);
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump("");
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Buckets staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    private int indexOf(long value) {
+        if (value < subBucketCount)
+            return (int) value;
+
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - (subBucketBits - 1);
+        final int sub = (int) (value >>> shift);
+        return subBucketCount + (shift - 1) * halfCount + (sub - halfCount);
+    }
+
+    private long highestValueOf(int index) {
+        if (index < subBucketCount)
+            return index;
+
+        final int k = index - subBucketCount;
+        final int shift = k / halfCount + 1;
+        final long sub = halfCount + k % halfCount;
+        return ((sub + 1) << shift) - 1;
+    }
+}
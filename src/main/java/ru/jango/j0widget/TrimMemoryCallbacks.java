@@ -0,0 +1,112 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+/**
+ * Base class for reacting on memory pressure: subclasses get
+ * {@link #onTrimMemory(int)} with {@link android.content.ComponentCallbacks2} levels, and
+ * {@link android.content.ComponentCallbacks#onLowMemory()} is treated as
+ * {@link android.content.ComponentCallbacks2#TRIM_MEMORY_COMPLETE}.
+ * <p/>
+ * Callbacks could be registered only since API 14; on older versions {@link #register(android.content.Context)}
+ * does nothing, but {@link #onTrimMemory(int)} could still be called manually (for example, from
+ * {@link android.app.Activity#onLowMemory()}). Class itself doesn't implement
+ * {@link android.content.ComponentCallbacks2}, so it could be safely loaded on any API version -
+ * real callbacks are created only while registering.
+ */
+public abstract class TrimMemoryCallbacks {
+
+    private Context registeredContext;
+    // ComponentCallbacks2, created on first registering
+    private Object callbacks;
+
+    /**
+     * Is called on main thread with one of {@link android.content.ComponentCallbacks2}
+     * TRIM_MEMORY_* levels.
+     */
+    public abstract void onTrimMemory(int level);
+
+    /**
+     * Registers callbacks in the application context of the specified one. Does nothing, if
+     * callbacks are already registered, or API is lower, than 14.
+     */
+    public void register(Context ctx) {
+        if (registeredContext != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            return;
+
+        if (callbacks == null) callbacks = IceCreamSandwichPlus.createCallbacks(this);
+        registeredContext = ctx.getApplicationContext();
+        IceCreamSandwichPlus.register(registeredContext, callbacks);
+    }
+
+    public void unregister() {
+        if (registeredContext == null)
+            return;
+
+        IceCreamSandwichPlus.unregister(registeredContext, callbacks);
+        registeredContext = null;
+    }
+
+    public boolean isRegistered() {
+        return registeredContext != null;
+    }
+
+    @TargetApi(14)
+    /** Wrapper class to protect access to API version 14 and above features */
+    private static final class IceCreamSandwichPlus {
+        static {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                throw new RuntimeException("Should not get to IceCreamSandwichPlus class unless sdk is >= 14!");
+            }
+        }
+
+        public static Object createCallbacks(final TrimMemoryCallbacks owner) {
+            return new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    owner.onTrimMemory(level);
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+
+                @Override
+                public void onLowMemory() {
+                    owner.onTrimMemory(TRIM_MEMORY_COMPLETE);
+                }
+            };
+        }
+
+        public static void register(Context ctx, Object callbacks) {
+            ctx.registerComponentCallbacks((ComponentCallbacks2) callbacks);
+        }
+
+        public static void unregister(Context ctx, Object callbacks) {
+            ctx.unregisterComponentCallbacks((ComponentCallbacks2) callbacks);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * Default {@link ru.jango.j0widget.camera.PreviewPolicy}: chooses preview size with the square
+ * closest to the view's square. Aspect ratio and fps are not taken into account, fps range is
+ * left as camera sets it by default.
+ */
+public class AreaPreviewPolicy implements PreviewPolicy {
+
+    @Override
+    public PreviewConfig choose(List<Camera.Size> sizes, List<int[]> fpsRanges, int viewWidth, int viewHeight) {
+        final int w = viewWidth;
+        final int h = viewHeight;
+
+        // optimal size should be the closest to the required; it could be checked by squares
+        Camera.Size optimalSize = sizes.get(0);
+        for (Camera.Size size : sizes)
+            if (Math.abs(w*h - size.width*size.height) <= Math.abs(w*h - optimalSize.width*optimalSize.height))
+                optimalSize = size;
+
+        return new PreviewConfig(optimalSize.width, optimalSize.height);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * {@link ru.jango.j0widget.camera.PreviewPolicy}, that cares about ISP/GPU bandwidth. Every
+ * supported size is scored by:
+ * <ul>
+ * <li>aspect ratio match with the view</li>
+ * <li>resolution relative to the view (too small looks bad, too big just wastes bandwidth)</li>
+ * <li>pixels per second at the chosen fps, that should not exceed {@link #getMaxPixelsPerSecond()}</li>
+ * </ul>
+ * For every size fps range is chosen among supported ones: the cheapest, that still gives
+ * {@link #getTargetFps()}.
+ * <p/>
+ * In {@link Mode#BEST_QUALITY} mode the size with the best score is chosen. In
+ * {@link Mode#CHEAPEST} mode - the configuration with the lowest pixels per second, that still
+ * has resolution not lower than {@link #getTargetQuality()} of the view and matches it's aspect
+ * ratio with {@link #getMaxAspectError()} tolerance.
+ */
+public class BandwidthPreviewPolicy implements PreviewPolicy {
+
+    public enum Mode { BEST_QUALITY, CHEAPEST }
+
+    public static final long DEFAULT_MAX_PIXELS_PER_SECOND = 1920L * 1080L * 30L;
+    public static final int DEFAULT_TARGET_FPS = 30;
+    public static final float DEFAULT_TARGET_QUALITY = 0.75f;
+    public static final float DEFAULT_MAX_ASPECT_ERROR = 0.1f;
+    public static final float DEFAULT_ASPECT_WEIGHT = 2f;
+
+    private Mode mode;
+    private long maxPixelsPerSecond;
+    private int targetFps;
+    private float targetQuality;
+    private float maxAspectError;
+    private float aspectWeight;
+
+    public BandwidthPreviewPolicy() {
+        this(Mode.BEST_QUALITY);
+    }
+
+    public BandwidthPreviewPolicy(Mode mode) {
+        this.mode = mode;
+        this.maxPixelsPerSecond = DEFAULT_MAX_PIXELS_PER_SECOND;
+        this.targetFps = DEFAULT_TARGET_FPS;
+        this.targetQuality = DEFAULT_TARGET_QUALITY;
+        this.maxAspectError = DEFAULT_MAX_ASPECT_ERROR;
+        this.aspectWeight = DEFAULT_ASPECT_WEIGHT;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public long getMaxPixelsPerSecond() {
+        return maxPixelsPerSecond;
+    }
+
+    /**
+     * Sets cap on preview width * height * fps.
+     */
+    public void setMaxPixelsPerSecond(long maxPixelsPerSecond) {
+        this.maxPixelsPerSecond = maxPixelsPerSecond;
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * Sets wanted preview fps (in frames per second, not multiplied by 1000).
+     */
+    public void setTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
+    public float getTargetQuality() {
+        return targetQuality;
+    }
+
+    /**
+     * Sets min acceptable preview resolution in {@link Mode#CHEAPEST} mode, as a part of view's
+     * resolution: 1 means preview should have at least as many pixels by each side, as the view
+     * has; 0.5 - half of them.
+     */
+    public void setTargetQuality(float targetQuality) {
+        this.targetQuality = targetQuality;
+    }
+
+    public float getMaxAspectError() {
+        return maxAspectError;
+    }
+
+    /**
+     * Sets max acceptable difference of aspect ratios in {@link Mode#CHEAPEST} mode. Difference is
+     * measured as |ln(previewAspect / viewAspect)|, so 0.1 is about 10%.
+     */
+    public void setMaxAspectError(float maxAspectError) {
+        this.maxAspectError = maxAspectError;
+    }
+
+    public float getAspectWeight() {
+        return aspectWeight;
+    }
+
+    /**
+     * Sets importance of aspect ratio match comparing to resolution match in
+     * {@link Mode#BEST_QUALITY} mode.
+     */
+    public void setAspectWeight(float aspectWeight) {
+        this.aspectWeight = aspectWeight;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Policy staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    @Override
+    public PreviewConfig choose(List<Camera.Size> sizes, List<int[]> fpsRanges, int viewWidth, int viewHeight) {
+        // preview sizes are always in sensor (landscape) orientation
+        final int viewLong = Math.max(viewWidth, viewHeight);
+        final int viewShort = Math.max(1, Math.min(viewWidth, viewHeight));
+
+        Camera.Size best = null;
+        int[] bestFps = null;
+        double bestScore = Double.MAX_VALUE;
+
+        Camera.Size cheapest = null;
+        int[] cheapestFps = null;
+        long cheapestCost = Long.MAX_VALUE;
+
+        for (Camera.Size size : sizes) {
+            final int[] fps = chooseFpsRange(fpsRanges, size);
+            final long cost = getPixelsPerSecond(size, fps);
+            final double aspectError = getAspectError(size, viewLong, viewShort);
+            final double coverage = getCoverage(size, viewLong, viewShort);
+
+            double score = aspectWeight * aspectError + Math.abs(Math.log(Math.min(coverage, 1d)))
+                    + 0.25d * Math.log(Math.max(coverage, 1d));
+            if (cost > maxPixelsPerSecond)
+                score += 100d + ((double) cost) / maxPixelsPerSecond;
+
+            if (score < bestScore) {
+                bestScore = score;
+                best = size;
+                bestFps = fps;
+            }
+
+            final boolean acceptable = cost <= maxPixelsPerSecond && coverage >= targetQuality
+                    && aspectError <= maxAspectError;
+            if (acceptable && cost < cheapestCost) {
+                cheapestCost = cost;
+                cheapest = size;
+                cheapestFps = fps;
+            }
+        }
+
+        if (mode == Mode.CHEAPEST && cheapest != null)
+            return createConfig(cheapest, cheapestFps);
+
+        return createConfig(best, bestFps);
+    }
+
+    /**
+     * Chooses fps range for the size: range with the lowest max fps, that still gives
+     * {@link #getTargetFps()} and fits {@link #getMaxPixelsPerSecond()}; if there is no such -
+     * the fastest range, that fits, or just the slowest one.
+     */
+    protected int[] chooseFpsRange(List<int[]> fpsRanges, Camera.Size size) {
+        if (fpsRanges == null || fpsRanges.isEmpty())
+            return null;
+
+        final long pixels = ((long) size.width) * size.height;
+        final int target = targetFps * 1000;
+
+        int[] enough = null;
+        int[] fastestFitting = null;
+        int[] slowest = null;
+        for (int[] range : fpsRanges) {
+            final int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            final boolean fits = pixels * max / 1000L <= maxPixelsPerSecond;
+
+            if (slowest == null || max < slowest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX])
+                slowest = range;
+            if (!fits)
+                continue;
+
+            if (max >= target && (enough == null || max < enough[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    || (max == enough[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    && range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] < enough[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])))
+                enough = range;
+            if (fastestFitting == null || max > fastestFitting[Camera.Parameters.PREVIEW_FPS_MAX_INDEX])
+                fastestFitting = range;
+        }
+
+        if (enough != null) return enough;
+        if (fastestFitting != null) return fastestFitting;
+        return slowest;
+    }
+
+    private long getPixelsPerSecond(Camera.Size size, int[] fps) {
+        final int max = fps != null ? fps[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] : targetFps * 1000;
+        return ((long) size.width) * size.height * max / 1000L;
+    }
+
+    private double getAspectError(Camera.Size size, int viewLong, int viewShort) {
+        final double sizeAspect = ((double) Math.max(size.width, size.height)) / Math.max(1, Math.min(size.width, size.height));
+        final double viewAspect = ((double) viewLong) / viewShort;
+        return Math.abs(Math.log(sizeAspect / viewAspect));
+    }
+
+    private double getCoverage(Camera.Size size, int viewLong, int viewShort) {
+        final double longCoverage = ((double) Math.max(size.width, size.height)) / Math.max(1, viewLong);
+        final double shortCoverage = ((double) Math.min(size.width, size.height)) / viewShort;
+        return Math.min(longCoverage, shortCoverage);
+    }
+
+    private PreviewConfig createConfig(Camera.Size size, int[] fps) {
+        if (fps == null)
+            return new PreviewConfig(size.width, size.height);
+
+        return new PreviewConfig(size.width, size.height,
+                fps[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], fps[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+    }
+}
@@ -23,6 +23,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.graphics.Point;
+import android.os.Build;
 import android.os.Handler;
 
 import java.net.URI;
@@ -41,17 +42,34 @@ import ru.jango.j0util.PathUtil;
  * <li>resize by {@link #setPictureSize(android.graphics.Point)}</li>
  * <li>rotate by {@link #setPictureRotation(int)}</li>
  * <li>create thumbnails sized by {@link #setThumbnailSize(android.graphics.Point)}</li>
+ * <li>skip duplicates by {@link #setDuplicateFilter(DuplicateFilter)}</li>
+ * <li>fit into a byte budget by {@link #setMaxByteSize(int)}</li>
+ * <li>encode into JPEG, PNG or WebP (API 14+) by {@link #setCompressFormat(android.graphics.Bitmap.CompressFormat)}
+ * or by the extension of data ID</li>
  * </ul>
  */
 public class BitmapProcessor implements Runnable {
 
+    public static final int DEFAULT_MIN_QUALITY = 20;
+
+    /**
+     * Quality search stops, when the picture takes at least this part of the byte budget.
+     */
+    private static final float BYTE_SIZE_TOLERANCE = 0.9f;
+
     private Point picSize;
     private Point thumbnailSize;
     private int picQuality;
     private int picRotation;
+    private CompressFormat compressFormat;
+    private int maxByteSize;
+    private int minQuality;
+    private int encodedQuality;
+    private EncodeBufferPool encodeBufferPool;
 
     private byte[] data;
     private URI dataID;
+    private DuplicateFilter duplicateFilter;
 
     private BitmapProcessorListener listener;
     private Handler mainTreadHandler;
@@ -65,6 +83,11 @@ public class BitmapProcessor implements Runnable {
         this.thumbnailSize = null;
         this.picQuality = 70;
         this.picRotation = 0;
+        this.compressFormat = null;
+        this.maxByteSize = 0;
+        this.minQuality = DEFAULT_MIN_QUALITY;
+        this.encodedQuality = -1;
+        this.encodeBufferPool = EncodeBufferPool.getDefault();
 
         mainTreadHandler = new Handler();
     }
@@ -115,6 +138,76 @@ public class BitmapProcessor implements Runnable {
         this.picRotation = picRotation;
     }
 
+    public CompressFormat getCompressFormat() {
+        return compressFormat;
+    }
+
+    /**
+     * Sets format of the result. By default (NULL) it's chosen by the extension of data ID:
+     * 'png', 'webp' or JPEG for everything else. WebP requires API 14; on older APIs JPEG is used.
+     */
+    public void setCompressFormat(CompressFormat compressFormat) {
+        this.compressFormat = compressFormat;
+    }
+
+    public int getMaxByteSize() {
+        return maxByteSize;
+    }
+
+    /**
+     * Sets max size of the result in bytes. Quality is searched by bisection between
+     * {@link #getMinQuality()} and {@link #getPicQuality()}, so that the result is the best one,
+     * that fits. If even min quality doesn't fit, result is encoded with min quality anyway.
+     * Doesn't work for PNG. 0 (default) means no limit - {@link #getPicQuality()} is used.
+     */
+    public void setMaxByteSize(int maxByteSize) {
+        this.maxByteSize = maxByteSize;
+    }
+
+    public int getMinQuality() {
+        return minQuality;
+    }
+
+    /**
+     * Sets the lowest quality, that could be used to fit into {@link #getMaxByteSize()}.
+     */
+    public void setMinQuality(int minQuality) {
+        this.minQuality = minQuality;
+    }
+
+    /**
+     * Returns quality, that the picture was actually encoded with, or -1 if it was not encoded yet.
+     */
+    public int getEncodedQuality() {
+        return encodedQuality;
+    }
+
+    public EncodeBufferPool getEncodeBufferPool() {
+        return encodeBufferPool;
+    }
+
+    /**
+     * Sets pool of buffers, that pictures are encoded into. By default
+     * {@link EncodeBufferPool#getDefault()} is used.
+     */
+    public void setEncodeBufferPool(EncodeBufferPool encodeBufferPool) {
+        this.encodeBufferPool = encodeBufferPool;
+    }
+
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * Sets filter, that checks picture before processing; duplicates of the previous accepted
+     * picture are not processed and {@link DuplicatePictureException} is passed into
+     * {@link BitmapProcessorListener#onProcessingFailed(java.net.URI, Exception)}. By default
+     * there is no filter.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
     public BitmapProcessorListener getBitmapProcessorListener() {
         return listener;
     }
@@ -130,12 +223,98 @@ public class BitmapProcessor implements Runnable {
     ///////////////////////////////////////////////////////////////
 
     private CompressFormat findFormat(URI uri) {
+        // CompressFormat.WEBP appeared in API 14 - it should not be touched on older versions
+        final boolean webp = compressFormat != null ? compressFormat.name().equals("WEBP") :
+                PathUtil.getExt(uri).equals("webp");
+        if (webp)
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ?
+                    CompressFormat.valueOf("WEBP") : CompressFormat.JPEG;
+        if (compressFormat != null)
+            return compressFormat;
         if (PathUtil.getExt(uri).equals("png"))
             return CompressFormat.PNG;
 
         return CompressFormat.JPEG;
     }
 
+    /**
+     * Encodes bitmap into {@link #getCompressFormat()} with {@link #getPicQuality()}, or with
+     * the best quality, that fits into {@link #getMaxByteSize()}. Result is written into a buffer
+     * from {@link #getEncodeBufferPool()}.
+     */
+    protected EncodeBuffer compress(Bitmap bmp) {
+        final CompressFormat format = findFormat(dataID);
+        final EncodeBuffer result;
+        if (maxByteSize <= 0 || format == CompressFormat.PNG) {
+            result = encodeBufferPool.obtain(format, bmp.getWidth(), bmp.getHeight());
+            try {
+                encode(bmp, format, picQuality, result);
+            } catch (RuntimeException e) {
+                result.recycle();
+                throw e;
+            }
+            encodedQuality = picQuality;
+        } else result = compressToSize(bmp, format);
+
+        encodeBufferPool.record(format, bmp.getWidth(), bmp.getHeight(), result.size());
+        return result;
+    }
+
+    private EncodeBuffer compressToSize(Bitmap bmp, CompressFormat format) {
+        // candidates are encoded into the scratch buffer; the best fitting one is kept aside
+        EncodeBuffer scratch = encodeBufferPool.obtain(format, bmp.getWidth(), bmp.getHeight());
+        EncodeBuffer best = null;
+
+        try {
+            // requested quality is tried first - usually it already fits
+            int low = Math.min(minQuality, picQuality);
+            int high = picQuality;
+            int quality = high;
+            while (true) {
+                encode(bmp, format, quality, scratch);
+
+                if (scratch.size() <= maxByteSize) {
+                    final EncodeBuffer tmp = best;
+                    best = scratch;
+                    scratch = tmp != null ? tmp : encodeBufferPool.obtain(best.capacity());
+                    encodedQuality = quality;
+
+                    if (best.size() >= maxByteSize * BYTE_SIZE_TOLERANCE)
+                        break;
+                    low = quality + 1;
+                } else high = quality - 1;
+
+                if (low > high)
+                    break;
+                quality = (low + high + 1) / 2;
+            }
+
+            final EncodeBuffer result;
+            if (best != null) {
+                result = best;
+                best = null;
+            } else {
+                // the last attempt was made with min quality
+                LogUtil.w(BitmapProcessor.class, "Picture doesn't fit into " + maxByteSize + " bytes even with quality " + quality);
+                encodedQuality = quality;
+                result = scratch;
+                scratch = null;
+            }
+
+            return result;
+        } finally {
+            // buffers, that are not returned, go back into the pool - even if encoding has failed
+            if (scratch != null) scratch.recycle();
+            if (best != null) best.recycle();
+        }
+    }
+
+    private void encode(Bitmap bmp, CompressFormat format, int quality, EncodeBuffer out) {
+        out.reset();
+        if (!bmp.compress(format, quality, out))
+            throw new IllegalStateException("Bitmap compression failed");
+    }
+
     /**
      * Invokes listener, that bitmap was processed successfully, if the listener was previously set.
      * Method will be called on main thread.
@@ -155,6 +334,24 @@ public class BitmapProcessor implements Runnable {
         });
     }
 
+    /**
+     * The same as {@link #postProcessingFinished(byte[], android.graphics.Bitmap)}, but passes
+     * the buffer itself into {@link EncodeBufferListener}.
+     */
+    protected void postProcessingFinished(final EncodeBuffer pic, final Bitmap thumbnail) {
+        if (!(listener instanceof EncodeBufferListener)) {
+            pic.recycle();
+            return;
+        }
+
+        mainTreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ((EncodeBufferListener) listener).onProcessingFinished(dataID, pic, thumbnail);
+            }
+        });
+    }
+
     /**
      * Invokes listener, that bitmap processing failed, if the listener was previously set.
      * Method will be called on main thread.
@@ -189,6 +386,16 @@ public class BitmapProcessor implements Runnable {
      * needed and rotates it if needed.
      */
     protected byte[] preparePicture() {
+        final EncodeBuffer pic = preparePictureBuffer();
+        try { return pic.toByteArray(); }
+        finally { pic.recycle(); }
+    }
+
+    /**
+     * The same as {@link #preparePicture()}, but returns the buffer, that picture was encoded
+     * into, without copying. Buffer should be recycled after use.
+     */
+    protected EncodeBuffer preparePictureBuffer() {
         Bitmap bmp = decodeData();
         if (picRotation != 0) {
             final Bitmap tmp = bmp;
@@ -196,10 +403,8 @@ public class BitmapProcessor implements Runnable {
             tmp.recycle();
         }
 
-        byte[] pic = BmpUtil.bmpToByte(bmp, findFormat(dataID), picQuality);
-        bmp.recycle();
-
-        return pic;
+        try { return compress(bmp); }
+        finally { bmp.recycle(); }
     }
 
     /**
@@ -211,12 +416,60 @@ public class BitmapProcessor implements Runnable {
         else return null;
     }
 
+    /**
+     * The same as {@link #prepareThumbnail(byte[])}, but decodes the picture right from the buffer.
+     */
+    protected Bitmap prepareThumbnail(EncodeBuffer preparedPicture) {
+        if (thumbnailSize == null)
+            return null;
+
+        final byte[] data = preparedPicture.getBuffer();
+        final int length = preparedPicture.size();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        final float scale = Math.min(((float) thumbnailSize.x) / width, ((float) thumbnailSize.y) / height);
+
+        // subsampled decoding should still be not smaller, than the thumbnail
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (scale * options.inSampleSize * 2 <= 1f)
+            options.inSampleSize *= 2;
+
+        final Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (decoded == null || scale >= 1f)
+            return decoded;
+
+        final Bitmap thumbnail = Bitmap.createScaledBitmap(decoded,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        if (thumbnail != decoded) decoded.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Computes {@link PerceptualHash} of the picture for {@link #getDuplicateFilter()}.
+     */
+    protected long computeHash() {
+        return PerceptualHash.ofEncoded(data);
+    }
+
     /**
      * If you want to add more processing features (except scaling and rotating), you could
      * subclass {@link ru.jango.j0widget.camera.BitmapProcessor} and rewrite this method. Actual
      * bitmap processing work is done here.
      */
     protected void doInBackground() {
+        if (listener instanceof EncodeBufferListener) {
+            final EncodeBuffer pic = preparePictureBuffer();
+            postProcessingFinished(pic, prepareThumbnail(pic));
+            return;
+        }
+
         final byte[] pic = preparePicture();
         postProcessingFinished(pic, prepareThumbnail(pic));
     }
@@ -224,6 +477,12 @@ public class BitmapProcessor implements Runnable {
     @Override
     public void run() {
         try {
+            final int distance = duplicateFilter != null ? duplicateFilter.filter(computeHash()) : -1;
+            if (distance != -1) {
+                postProcessingFailed(new DuplicatePictureException(distance));
+                return;
+            }
+
             doInBackground();
         } catch (Exception e) {
             postProcessingFailed(e);
@@ -250,4 +509,22 @@ public class BitmapProcessor implements Runnable {
          */
         public void onProcessingFailed(URI dataID, Exception e);
     }
+
+    /**
+     * Listener, that receives the processed picture in the buffer, it was encoded into, without
+     * copying it into a separate array.
+     */
+    public interface EncodeBufferListener extends BitmapProcessorListener {
+
+        /**
+         * Is called on main thread instead of {@link #onProcessingFinished(java.net.URI, byte[], android.graphics.Bitmap)}.
+         *
+         * @param dataID        {@link java.net.URI}, that was passed in {@link BitmapProcessor} constructor
+         * @param data          processed bitmap; only first {@link EncodeBuffer#size()} bytes of
+         *                      {@link EncodeBuffer#getBuffer()} are valid. Listener should call
+         *                      {@link EncodeBuffer#recycle()}, when data is not needed any more
+         * @param thumbnail     the same bitmap, but resized to {@link BitmapProcessor#getThumbnailSize()}
+         */
+        public void onProcessingFinished(URI dataID, EncodeBuffer data, Bitmap thumbnail);
+    }
 }
@@ -0,0 +1,229 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static capabilities of a camera: facing, sensor orientation, supported preview and picture
+ * sizes and preview fps ranges. They never change, but {@link android.hardware.Camera#getParameters()}
+ * is an IPC call, that parses the whole parameters string, so capabilities are queried only once
+ * for every camera ID and cached for the whole process.
+ * <p/>
+ * Two cameras could not be opened at the same time, so capabilities of a camera become known
+ * after it's first opening; {@link #get(int)} returns NULL before that.
+ * <p/>
+ * {@link android.hardware.Camera.Size} is an inner class of {@link android.hardware.Camera}, so
+ * caching it would keep the camera object for the whole process. Sizes are kept as plain
+ * {width, height} pairs and are wrapped into {@link android.hardware.Camera.Size} of the
+ * currently opened camera only on request.
+ */
+public class CameraCapabilities {
+
+    private static final Map<Integer, CameraCapabilities> cache = new HashMap<Integer, CameraCapabilities>();
+
+    private final int cameraId;
+    private final int facing;
+    private final int orientation;
+    // {width, height} pairs
+    private final List<int[]> previewSizes;
+    private final List<int[]> pictureSizes;
+    private final List<int[]> fpsRanges;
+
+    private CameraCapabilities(int cameraId, Camera.CameraInfo info, Camera.Parameters params) {
+        this.cameraId = cameraId;
+        this.facing = info.facing;
+        this.orientation = info.orientation;
+        this.previewSizes = copySizes(params.getSupportedPreviewSizes());
+        this.pictureSizes = copySizes(params.getSupportedPictureSizes());
+        this.fpsRanges = unmodifiable(params.getSupportedPreviewFpsRange());
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        return list == null ? Collections.<T>emptyList() :
+                Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+
+    private static List<int[]> copySizes(List<Camera.Size> sizes) {
+        if (sizes == null)
+            return Collections.emptyList();
+
+        final List<int[]> ret = new ArrayList<int[]>(sizes.size());
+        for (Camera.Size size : sizes)
+            ret.add(new int[] { size.width, size.height });
+
+        return Collections.unmodifiableList(ret);
+    }
+
+    private static List<Camera.Size> wrapSizes(Camera camera, List<int[]> sizes) {
+        final List<Camera.Size> ret = new ArrayList<Camera.Size>(sizes.size());
+        for (int[] size : sizes)
+            ret.add(camera.new Size(size[0], size[1]));
+
+        return ret;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Cache staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns cached capabilities of the camera, or NULL if the camera was not opened yet.
+     */
+    public static synchronized CameraCapabilities get(int cameraId) {
+        return cache.get(cameraId);
+    }
+
+    /**
+     * Returns cached capabilities of the camera; if there are no such, queries them from the
+     * opened camera object and caches.
+     *
+     * @param camera    opened camera
+     * @param cameraId  ID, that camera was opened with
+     */
+    public static synchronized CameraCapabilities obtain(Camera camera, int cameraId) {
+        CameraCapabilities caps = cache.get(cameraId);
+        if (caps == null) {
+            final Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+
+            caps = new CameraCapabilities(cameraId, info, camera.getParameters());
+            cache.put(cameraId, caps);
+        }
+
+        return caps;
+    }
+
+    public static synchronized void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Returns ID of the first camera with the specified facing, or -1 if there is no such. Uses
+     * only {@link android.hardware.Camera#getCameraInfo(int, android.hardware.Camera.CameraInfo)},
+     * that doesn't open cameras.
+     *
+     * @param facing    {@link android.hardware.Camera.CameraInfo#CAMERA_FACING_BACK} or
+     *                  {@link android.hardware.Camera.CameraInfo#CAMERA_FACING_FRONT}
+     */
+    public static int findCameraId(int facing) {
+        final Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, info);
+            if (info.facing == facing)
+                return i;
+        }
+
+        return -1;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    public int getFacing() {
+        return facing;
+    }
+
+    public boolean isFrontFacing() {
+        return facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    /**
+     * Returns angle in degrees, that camera sensor is mounted with.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns supported preview sizes as {width, height} pairs.
+     */
+    public List<int[]> getPreviewSizes() {
+        return previewSizes;
+    }
+
+    /**
+     * Returns supported picture sizes as {width, height} pairs.
+     */
+    public List<int[]> getPictureSizes() {
+        return pictureSizes;
+    }
+
+    /**
+     * Returns supported preview sizes as new {@link android.hardware.Camera.Size} objects of the
+     * specified camera; they should not be kept longer, than the camera.
+     *
+     * @param camera    any opened camera
+     */
+    public List<Camera.Size> getPreviewSizes(Camera camera) {
+        return wrapSizes(camera, previewSizes);
+    }
+
+    /**
+     * @see #getPreviewSizes(android.hardware.Camera)
+     */
+    public List<Camera.Size> getPictureSizes(Camera camera) {
+        return wrapSizes(camera, pictureSizes);
+    }
+
+    public List<int[]> getFpsRanges() {
+        return fpsRanges;
+    }
+
+    /**
+     * Returns angle for {@link android.hardware.Camera#setDisplayOrientation(int)}. Front camera
+     * preview is mirrored, so it's rotation is compensated in the opposite direction.
+     *
+     * @param displayRotation   display rotation in degrees
+     */
+    public int getDisplayOrientation(int displayRotation) {
+        if (isFrontFacing())
+            return (360 - (orientation + displayRotation) % 360) % 360;
+
+        return (orientation - displayRotation + 360) % 360;
+    }
+
+    /**
+     * Returns angle in degrees, that taken picture should be rotated by.
+     *
+     * @param displayRotation   display rotation in degrees
+     */
+    public int getPictureRotation(int displayRotation) {
+        if (isFrontFacing())
+            return (orientation + displayRotation) % 360;
+
+        return (orientation - displayRotation + 360) % 360;
+    }
+}
@@ -19,16 +19,23 @@
 
 package ru.jango.j0widget.camera;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.hardware.Camera.Size;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -36,20 +43,62 @@ import ru.jango.j0util.LogUtil;
 import ru.jango.j0util.RotationUtil;
 
 public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
+
+    public static final int UNKNOWN_CAMERA_ID = -1;
+
+    /**
+     * View, that actually shows the preview.
+     */
+    public enum Backend {
+        /**
+         * {@link android.view.SurfaceView}, laid out by the preview size. Works everywhere.
+         */
+        SURFACE_VIEW,
+
+        /**
+         * {@link android.view.TextureView}, that fills the whole {@link CameraPreview}; preview is
+         * scaled (keeping aspect ratio) and rotated by a matrix transform, so view resizes and
+         * display rotations don't cause relayout and surface recreation. Requires API 14 and
+         * hardware acceleration; on older APIs {@link #SURFACE_VIEW} is used.
+         */
+        TEXTURE_VIEW
+    }
     
     private SurfaceView surfaceView;
-    private Size previewSize;
+    private TextureView textureView;
+    private PreviewConfig previewConfig;
+    private PreviewPolicy previewPolicy;
+    private PreviewFrameDispatcher frameDispatcher;
     private Camera camera;
+    private int cameraId;
     private boolean previewStarted;
+    private int displayOrientation;
+    private final Matrix transform = new Matrix();
 
-    public CameraPreview(Context context) { super(context); init(context); }
-    public CameraPreview(Context context, AttributeSet attrs) { super(context, attrs); init(context); }
-    public CameraPreview(Context context, AttributeSet attrs, int style) { super(context, attrs, style); init(context); }
+    // configs, chosen for every camera ID, and their common key
+    private final Map<Integer, PreviewConfig> configCache = new HashMap<Integer, PreviewConfig>();
+    private int sizedWidth;
+    private int sizedHeight;
+    private int sizedRotation;
 
-    private void init(Context context) {
+    public CameraPreview(Context context) { super(context); init(context, Backend.SURFACE_VIEW); }
+    public CameraPreview(Context context, Backend backend) { super(context); init(context, backend); }
+    public CameraPreview(Context context, AttributeSet attrs) { super(context, attrs); init(context, Backend.SURFACE_VIEW); }
+    public CameraPreview(Context context, AttributeSet attrs, int style) { super(context, attrs, style); init(context, Backend.SURFACE_VIEW); }
+
+    private void init(Context context, Backend backend) {
     	setBackgroundColor(Color.BLACK);
     	previewStarted = false;
-    	
+    	cameraId = UNKNOWN_CAMERA_ID;
+    	previewPolicy = new AreaPreviewPolicy();
+    	invalidatePreviewSize();
+
+        if (backend == Backend.TEXTURE_VIEW && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            initTextureView(context);
+        else initSurfaceView(context);
+    }
+
+    private void initSurfaceView(Context context) {
         surfaceView = new SurfaceView(context);
         surfaceView.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
         surfaceView.getHolder().addCallback(this);
@@ -60,24 +109,97 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
         addView(surfaceView);
     }
 
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void initTextureView(Context context) {
+        textureView = new TextureView(context);
+        textureView.setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
+        textureView.setSurfaceTextureListener(new TextureListener());
+
+        addView(textureView);
+    }
+
+    public Backend getBackend() {
+        return textureView != null ? Backend.TEXTURE_VIEW : Backend.SURFACE_VIEW;
+    }
+
     public void setCamera(Camera camera) {
+        setCamera(camera, UNKNOWN_CAMERA_ID);
+    }
+
+    /**
+     * Remembers camera. Preview size is chosen once for every combination of camera ID, view
+     * size and orientation, so passing the ID allows to skip preview size calculation, when the
+     * same camera is reopened (for example, after taking a picture) or when cameras are switched
+     * back and forth. Also with known ID camera capabilities are taken from
+     * {@link ru.jango.j0widget.camera.CameraCapabilities} cache instead of querying the camera.
+     *
+     * @param camera    camera object; may be NULL
+     * @param cameraId  ID, that camera was opened with, or {@link #UNKNOWN_CAMERA_ID}
+     */
+    public void setCamera(Camera camera, int cameraId) {
+        if (camera != null && cameraId == UNKNOWN_CAMERA_ID && camera != this.camera)
+            configCache.remove(UNKNOWN_CAMERA_ID);
+
         this.camera = camera;
+        if (camera != null) this.cameraId = cameraId;
         calculatePreviewSize();
     }
 
+    public PreviewPolicy getPreviewPolicy() {
+        return previewPolicy;
+    }
+
+    /**
+     * Sets strategy of choosing preview size and fps range. By default
+     * {@link ru.jango.j0widget.camera.AreaPreviewPolicy} is used. New policy is applied on next
+     * preview start.
+     */
+    public void setPreviewPolicy(PreviewPolicy previewPolicy) {
+        this.previewPolicy = previewPolicy;
+        invalidatePreviewSize();
+        requestLayout();
+    }
+
+    /**
+     * Returns currently chosen preview configuration, or NULL if it was not chosen yet.
+     */
+    public PreviewConfig getPreviewConfig() {
+        return previewConfig;
+    }
+
+    public PreviewFrameDispatcher getFrameDispatcher() {
+        return frameDispatcher;
+    }
+
+    /**
+     * Sets {@link ru.jango.j0widget.camera.PreviewFrameDispatcher}, that would receive preview
+     * frames. Dispatcher is attached to the camera in {@link #startPreview()} and detached in
+     * {@link #stopPreview()}.
+     */
+    public void setFrameDispatcher(PreviewFrameDispatcher frameDispatcher) {
+        this.frameDispatcher = frameDispatcher;
+    }
+
     /**
      * Starts preview. {@link android.hardware.Camera} object should be already set by
      * {@link #setCamera(android.hardware.Camera)}. Otherwise method will do nothing.
      */
     public void startPreview() {
-    	if (camera == null || previewSize == null || previewStarted)
+    	if (camera == null || previewConfig == null || previewStarted)
     		return;
+        if (textureView != null && !textureView.isAvailable())
+            return;
 
    		configCamera();
    		try { 
-   			surfaceView.setVisibility(View.VISIBLE);
+   			if (surfaceView != null) surfaceView.setVisibility(View.VISIBLE);
+   			else attachDisplay(camera);
+   			if (frameDispatcher != null)
+   				frameDispatcher.attach(camera, previewConfig.getWidth(), previewConfig.getHeight());
+
    			camera.startPreview();
    			previewStarted = true;
+   			updateTransform();
    		} catch(Exception e) {
    			LogUtil.e(CameraPreview.class, "Starting preview failed: " + e);
    		}
@@ -88,12 +210,28 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
      * {@link #setCamera(android.hardware.Camera)}. Otherwise method will do nothing.
      */
     public void stopPreview() {
+        stopPreview(true);
+    }
+
+    /**
+     * The same as {@link #stopPreview()}, but the surface is kept visible, so it is not destroyed
+     * and the last frame stays on the screen. Should be used, when the camera would be replaced
+     * by {@link #switchCamera(android.hardware.Camera, int)} right away.
+     */
+    public void stopPreviewKeepingSurface() {
+        stopPreview(false);
+    }
+
+    private void stopPreview(boolean hideSurface) {
     	if (camera == null || !previewStarted)
     		return;
     	
    		try { 
    			previewStarted = false;
-   			surfaceView.setVisibility(View.INVISIBLE);
+   			if (surfaceView != null && hideSurface) surfaceView.setVisibility(View.INVISIBLE);
+   			if (frameDispatcher != null)
+   				frameDispatcher.detach(camera);
+
    			camera.stopPreview();
    		} catch(Exception e) {
    			LogUtil.e(CameraPreview.class, "Stopping preview failed: " + e);
@@ -109,14 +247,39 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
      * @param camera	new camera
      */
     public void switchCamera(Camera camera) {
+    	switchCamera(camera, UNKNOWN_CAMERA_ID);
+    }
+
+    /**
+     * The same as {@link #switchCamera(android.hardware.Camera)}, but also remembers camera ID.
+     *
+     * @see #setCamera(android.hardware.Camera, int)
+     */
+    public void switchCamera(Camera camera, int cameraId) {
     	stopPreview();
-   		try { camera.setPreviewDisplay(surfaceView.getHolder()); } 
+   		try { attachDisplay(camera); }
    		catch(Exception e) { LogUtil.e(CameraPreview.class, "Setting holder for new camera failed: " + e); }
    		
-    	setCamera(camera);
+    	setCamera(camera, cameraId);
     	startPreview();
     }
 
+    /**
+     * Chooses preview configuration again by current {@link #getPreviewPolicy()} (policy could be
+     * mutable, like {@link ru.jango.j0widget.camera.GovernedPreviewPolicy}) and, if it has
+     * changed, restarts preview with it. The camera and the surface are kept.
+     */
+    public void reconfigurePreview() {
+        final PreviewConfig oldConfig = previewConfig;
+        invalidatePreviewSize();
+        calculatePreviewSize();
+        if (!previewStarted || previewConfig == null || previewConfig.equals(oldConfig))
+            return;
+
+        stopPreview(false);
+        startPreview();
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
     	super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -129,10 +292,81 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
     	if (!changed || getChildCount() <= 0)
     		return;
 
-        if (previewSize == null) surfaceView.layout(0, 0, r - l, b - t);
+        if (textureView != null) {
+            textureView.layout(0, 0, r - l, b - t);
+            updateTransform();
+        } else if (previewConfig == null) surfaceView.layout(0, 0, r - l, b - t);
     	else if (RotationUtil.getLayoutOrientation(getContext()) == Configuration.ORIENTATION_PORTRAIT)
-            surfaceView.layout(0, 0, previewSize.height, previewSize.width);
-        else surfaceView.layout(0, 0, previewSize.width, previewSize.height);
+            surfaceView.layout(0, 0, previewConfig.getHeight(), previewConfig.getWidth());
+        else surfaceView.layout(0, 0, previewConfig.getWidth(), previewConfig.getHeight());
+    }
+
+    /**
+     * Passes the surface of the current backend into the camera.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void attachDisplay(Camera camera) throws IOException {
+        if (textureView == null) camera.setPreviewDisplay(surfaceView.getHolder());
+        else if (textureView.isAvailable()) camera.setPreviewTexture(textureView.getSurfaceTexture());
+    }
+
+    /**
+     * Updates {@link android.view.TextureView} transform: preview, stretched by the TextureView
+     * into it's bounds, is brought back to it's own aspect ratio, rotated by the difference
+     * between current display rotation and the rotation, that camera was configured with, and
+     * scaled to fill the view.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void updateTransform() {
+        if (textureView == null || previewConfig == null)
+            return;
+
+        final float w = textureView.getWidth();
+        final float h = textureView.getHeight();
+        if (w == 0 || h == 0)
+            return;
+
+        // preview as camera outputs it, already rotated by Camera#setDisplayOrientation
+        final boolean swapped = displayOrientation % 180 != 0;
+        final float contentW = swapped ? previewConfig.getHeight() : previewConfig.getWidth();
+        final float contentH = swapped ? previewConfig.getWidth() : previewConfig.getHeight();
+
+        final int delta = previewStarted ?
+                (getDisplayOrientation() - displayOrientation + 360) % 360 : 0;
+        final float rotatedW = delta % 180 != 0 ? contentH : contentW;
+        final float rotatedH = delta % 180 != 0 ? contentW : contentH;
+        final float scale = Math.max(w / rotatedW, h / rotatedH);
+
+        transform.reset();
+        transform.postScale(contentW / w, contentH / h, w / 2, h / 2);
+        transform.postRotate(delta, w / 2, h / 2);
+        transform.postScale(scale, scale, w / 2, h / 2);
+        textureView.setTransform(transform);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private class TextureListener implements TextureView.SurfaceTextureListener {
+
+        @Override
+        public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+            updateTransform();
+            startPreview();
+        }
+
+        @Override
+        public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            updateTransform();
+        }
+
+        @Override
+        public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+            stopPreview();
+            return true;
+        }
+
+        @Override
+        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+        }
     }
 
     @Override
@@ -151,41 +385,117 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
     	startPreview();
     }
 
+    /**
+     * Forgets chosen preview size, so it would be recalculated on next measure.
+     */
+    private void invalidatePreviewSize() {
+        configCache.clear();
+        sizedWidth = 0;
+        sizedHeight = 0;
+        sizedRotation = -1;
+    }
+
+    /**
+     * Chooses preview size. Querying camera parameters is an IPC call, and relayout of the
+     * surface restarts it, so the work is done only if camera, view size or orientation have
+     * changed since the last time.
+     */
     private void calculatePreviewSize() {
         if (camera == null || getMeasuredWidth() == 0 || getMeasuredHeight() == 0)
             return;
 
-        final List<Size> previewSizes = camera.getParameters().getSupportedPreviewSizes();
-        if (previewSizes != null) {
-            previewSize = getOptimalSize(previewSizes, getMeasuredWidth(), getMeasuredHeight());
-            surfaceView.requestLayout();
+        // with TextureView rotations are handled by the transform, so they don't matter here
+        final int rotation = textureView != null ? 0 : RotationUtil.getDisplayRotation(getContext());
+        final int width = textureView != null ?
+                Math.max(getMeasuredWidth(), getMeasuredHeight()) : getMeasuredWidth();
+        final int height = textureView != null ?
+                Math.min(getMeasuredWidth(), getMeasuredHeight()) : getMeasuredHeight();
+
+        if (sizedWidth != width || sizedHeight != height || sizedRotation != rotation) {
+            configCache.clear();
+            sizedWidth = width;
+            sizedHeight = height;
+            sizedRotation = rotation;
+        }
+
+        PreviewConfig config = configCache.get(cameraId);
+        if (config == null) {
+            final CameraCapabilities caps = cameraId != UNKNOWN_CAMERA_ID ?
+                    CameraCapabilities.obtain(camera, cameraId) : null;
+            if (caps != null) config = choosePreviewConfig(caps.getPreviewSizes(camera), caps.getFpsRanges());
+            else {
+                final Camera.Parameters params = camera.getParameters();
+                config = choosePreviewConfig(params.getSupportedPreviewSizes(),
+                        params.getSupportedPreviewFpsRange());
+            }
+
+            if (config == null)
+                return;
+            configCache.put(cameraId, config);
+        }
+
+        if (config.equals(previewConfig)) {
+            updateTransform();
+            return;
         }
+
+        previewConfig = config;
+        if (surfaceView != null) surfaceView.requestLayout();
+        else updateTransform();
     }
 
-    private void configCamera() {
-    	if (camera == null || previewSize == null || previewStarted)
-    		return;
+    /**
+     * Chooses preview configs for all the cameras, that have cached
+     * {@link ru.jango.j0widget.camera.CameraCapabilities}, for current view size and orientation.
+     * Afterwards switching onto any of them costs only opening of the camera. View should be
+     * already measured, otherwise method will do nothing.
+     */
+    public void precomputePreviewConfigs() {
+        if (camera == null || getMeasuredWidth() == 0 || getMeasuredHeight() == 0 || sizedWidth == 0)
+            return;
 
-        final Camera.Parameters params = camera.getParameters();
-    	params.setPreviewSize(previewSize.width, previewSize.height);
+        for (int id = 0; id < Camera.getNumberOfCameras(); id++) {
+            final CameraCapabilities caps = CameraCapabilities.get(id);
+            if (caps == null || configCache.containsKey(id))
+                continue;
 
-        camera.setParameters(params);
-		camera.setDisplayOrientation(RotationUtil.getCameraRotation(getContext()));
+            final PreviewConfig config = choosePreviewConfig(caps.getPreviewSizes(camera), caps.getFpsRanges());
+            if (config != null)
+                configCache.put(id, config);
+        }
+    }
+
+    private PreviewConfig choosePreviewConfig(List<Camera.Size> sizes, List<int[]> fpsRanges) {
+        if (sizes == null || sizes.isEmpty())
+            return null;
+
+        return previewPolicy.choose(sizes, fpsRanges, getMeasuredWidth(), getMeasuredHeight());
     }
 
     /**
-     * Looks through collection of supported by camera sizes and returns the most suitable.
+     * Returns angle for {@link android.hardware.Camera#setDisplayOrientation(int)} at current
+     * display rotation. Front cameras are mirrored, so they need their own calculation.
      */
-    private Size getOptimalSize(List<Size> sizes, int w, int h) {
-        if (sizes == null) 
-        	return null;
+    private int getDisplayOrientation() {
+        final CameraCapabilities caps = cameraId != UNKNOWN_CAMERA_ID ?
+                CameraCapabilities.get(cameraId) : null;
+        if (caps != null && caps.isFrontFacing())
+            return caps.getDisplayOrientation(RotationUtil.getDisplayRotation(getContext()));
 
-        // optimal size should be the closest to the required; it could be checked by squares
-        Size optimalSize = sizes.get(0);
-        for (Size size : sizes)
-        	if (Math.abs(w*h - size.width*size.height) <= Math.abs(w*h - optimalSize.width*optimalSize.height))
-        		optimalSize = size; 
+        return RotationUtil.getCameraRotation(getContext());
+    }
+
+    private void configCamera() {
+    	if (camera == null || previewConfig == null || previewStarted)
+    		return;
 
-        return optimalSize;
+        final Camera.Parameters params = camera.getParameters();
+    	params.setPreviewSize(previewConfig.getWidth(), previewConfig.getHeight());
+        if (previewConfig.hasFpsRange())
+            params.setPreviewFpsRange(previewConfig.getMinFps(), previewConfig.getMaxFps());
+
+        camera.setParameters(params);
+        displayOrientation = getDisplayOrientation();
+		camera.setDisplayOrientation(displayOrientation);
     }
 }
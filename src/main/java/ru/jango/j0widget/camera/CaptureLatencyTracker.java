@@ -0,0 +1,222 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ru.jango.j0widget.LatencyHistogram;
+
+/**
+ * Collects capture latencies: every capture is tracked from the tap till the processed result
+ * by monotonic {@link System#nanoTime()} timestamps, that are carried by the capture's
+ * {@link java.net.URI}. Durations of every {@link Phase} are aggregated in
+ * {@link ru.jango.j0widget.LatencyHistogram}s in microseconds.
+ * <p/>
+ * Tracker is fed by {@link ru.jango.j0widget.camera.fragment.AbstractCameraFragment} and
+ * {@link ru.jango.j0widget.camera.fragment.SimpleCameraFragment}; everything is kept in memory.
+ */
+public class CaptureLatencyTracker {
+
+    /**
+     * Max number of captures, that could wait for processing results at the same time. If
+     * results are lost somewhere, timestamps of the oldest capture are dropped first.
+     */
+    public static final int MAX_PENDING_CAPTURES = 32;
+
+    public enum Phase {
+        /**
+         * From the tap ({@link ru.jango.j0widget.camera.fragment.AbstractCameraFragment#takePicture()})
+         * till the picture data is received from the camera.
+         */
+        TAP_TO_SHUTTER,
+
+        /**
+         * From receiving picture data till preview is running again.
+         */
+        SHUTTER_TO_PREVIEW,
+
+        /**
+         * Picture processing by {@link ru.jango.j0widget.camera.BitmapProcessor}: from passing the
+         * data into processor till the result is delivered on main thread.
+         */
+        PROCESSING,
+
+        /**
+         * From the tap till the processed result.
+         */
+        TAP_TO_RESULT
+    }
+
+    private final LatencyHistogram[] histograms;
+    private final Map<URI, long[]> pending;
+
+    private long tapNanos;
+    private long shutterNanos;
+    private long failedCount;
+    private long skippedCount;
+
+    public CaptureLatencyTracker() {
+        histograms = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+
+        pending = new LinkedHashMap<URI, long[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, long[]> eldest) {
+                return size() > MAX_PENDING_CAPTURES;
+            }
+        };
+        tapNanos = -1;
+        shutterNanos = -1;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Capture events
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Capture has started.
+     *
+     * @param tapNanos  moment of the tap; could be earlier than now, if the request was queued
+     */
+    public synchronized void onCaptureStarted(long tapNanos) {
+        this.tapNanos = tapNanos;
+    }
+
+    /**
+     * Picture data was received from the camera.
+     *
+     * @param dataID    picture ID; may be NULL, if picture would not be processed
+     */
+    public synchronized void onPictureTaken(URI dataID) {
+        if (tapNanos == -1)
+            return;
+
+        shutterNanos = System.nanoTime();
+        record(Phase.TAP_TO_SHUTTER, shutterNanos - tapNanos);
+
+        if (dataID != null)
+            pending.put(dataID, new long[] { tapNanos, -1 });
+
+        tapNanos = -1;
+    }
+
+    /**
+     * Preview was restarted (or kept running) after the picture was taken.
+     */
+    public synchronized void onPreviewRestarted() {
+        if (shutterNanos == -1)
+            return;
+
+        record(Phase.SHUTTER_TO_PREVIEW, System.nanoTime() - shutterNanos);
+        shutterNanos = -1;
+    }
+
+    /**
+     * Picture data was passed into {@link ru.jango.j0widget.camera.BitmapProcessor}.
+     */
+    public synchronized void onProcessingStarted(URI dataID) {
+        final long[] timestamps = pending.get(dataID);
+        if (timestamps != null)
+            timestamps[1] = System.nanoTime();
+    }
+
+    /**
+     * Processing result was delivered.
+     */
+    public synchronized void onProcessingFinished(URI dataID) {
+        final long[] timestamps = pending.remove(dataID);
+        if (timestamps == null)
+            return;
+
+        final long now = System.nanoTime();
+        if (timestamps[1] != -1)
+            record(Phase.PROCESSING, now - timestamps[1]);
+        record(Phase.TAP_TO_RESULT, now - timestamps[0]);
+    }
+
+    /**
+     * Processing has failed; capture is not tracked any more.
+     */
+    public synchronized void onProcessingFailed(URI dataID) {
+        if (pending.remove(dataID) != null)
+            failedCount++;
+    }
+
+    /**
+     * Processing was skipped on purpose (for example, picture was a duplicate); capture is not
+     * tracked any more.
+     */
+    public synchronized void onProcessingSkipped(URI dataID) {
+        if (pending.remove(dataID) != null)
+            skippedCount++;
+    }
+
+    private void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos / 1000L);
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Snapshots
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns a copy of the histogram of the specified phase; values are in microseconds.
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()].snapshot();
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+
+        pending.clear();
+        failedCount = 0;
+        skippedCount = 0;
+    }
+
+    /**
+     * Returns multi-line summary of all the phases, suitable for logging.
+     */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values())
+            sb.append(phase).append(": ").append(getHistogram(phase).dump("us")).append('\n');
+
+        sb.append("FAILED: ").append(getFailedCount()).append('\n');
+        sb.append("SKIPPED: ").append(getSkippedCount());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+/**
+ * Decides, if a picture is a duplicate of the previous accepted one, by Hamming distance of their
+ * {@link ru.jango.j0widget.camera.PerceptualHash}es. Useful in burst and auto capture modes,
+ * where consecutive pictures are often nearly identical.
+ * <p/>
+ * Filter could be set into {@link ru.jango.j0widget.camera.BitmapProcessor}, than duplicates are
+ * not processed and reported by {@link ru.jango.j0widget.camera.DuplicatePictureException}.
+ * Methods are synchronized, so one filter could be shared by parallel processors.
+ */
+public class DuplicateFilter {
+
+    public static final int DEFAULT_MAX_DISTANCE = 5;
+
+    private int maxDistance;
+    private long lastHash;
+    private boolean hasLastHash;
+    private int lastDistance;
+
+    private long acceptedCount;
+    private long duplicateCount;
+
+    public DuplicateFilter() {
+        this(DEFAULT_MAX_DISTANCE);
+    }
+
+    public DuplicateFilter(int maxDistance) {
+        this.maxDistance = maxDistance;
+        this.lastDistance = -1;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public synchronized int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * Sets max Hamming distance (0..64) between hashes, that pictures are still treated as
+     * duplicates with. 0 means only pictures with equal hashes are duplicates.
+     */
+    public synchronized void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Returns distance between the last checked hash and the previous accepted one, or -1 if
+     * there was nothing to compare with.
+     */
+    public synchronized int getLastDistance() {
+        return lastDistance;
+    }
+
+    public synchronized long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Filter staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Checks the hash and remembers it, if it's not a duplicate.
+     *
+     * @param hash  {@link ru.jango.j0widget.camera.PerceptualHash} of the picture
+     * @return  -1, if the picture is accepted; otherwise it's a duplicate, and the distance to the
+     * previous accepted picture is returned
+     */
+    public synchronized int filter(long hash) {
+        lastDistance = hasLastHash ? PerceptualHash.distance(hash, lastHash) : -1;
+        if (lastDistance != -1 && lastDistance <= maxDistance) {
+            duplicateCount++;
+            return lastDistance;
+        }
+
+        lastHash = hash;
+        hasLastHash = true;
+        acceptedCount++;
+        return -1;
+    }
+
+    /**
+     * Forgets the last accepted picture (for example, when the camera was switched) and resets
+     * counters.
+     */
+    public synchronized void reset() {
+        hasLastHash = false;
+        lastDistance = -1;
+        acceptedCount = 0;
+        duplicateCount = 0;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+/**
+ * Is passed into {@link ru.jango.j0widget.camera.BitmapProcessor.BitmapProcessorListener#onProcessingFailed(java.net.URI, Exception)},
+ * when the picture was skipped by {@link ru.jango.j0widget.camera.DuplicateFilter}.
+ */
+public class DuplicatePictureException extends Exception {
+
+    private final int distance;
+
+    public DuplicatePictureException(int distance) {
+        super("Picture is a duplicate of the previous one, hash distance " + distance);
+        this.distance = distance;
+    }
+
+    /**
+     * Returns Hamming distance between hashes of the picture and the previous accepted one.
+     */
+    public int getDistance() {
+        return distance;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer for encoding pictures, like {@link java.io.ByteArrayOutputStream}, but
+ * it gives access to it's backing array ({@link #getBuffer()} and {@link #size()}), so the
+ * result could be used without copying, and it could be given back into
+ * {@link ru.jango.j0widget.camera.EncodeBufferPool} by {@link #recycle()} for reusing.
+ * <p/>
+ * Buffer is not thread-safe and must not be used after {@link #recycle()}.
+ */
+public class EncodeBuffer extends OutputStream {
+
+    private final EncodeBufferPool pool;
+    private byte[] buffer;
+    private int count;
+
+    EncodeBuffer(EncodeBufferPool pool, int capacity) {
+        this.pool = pool;
+        this.buffer = new byte[Math.max(1, capacity)];
+    }
+
+    /**
+     * Returns backing array; only first {@link #size()} bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns copy of the valid bytes.
+     */
+    public byte[] toByteArray() {
+        final byte[] result = new byte[count];
+        System.arraycopy(buffer, 0, result, 0, count);
+        return result;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Grows backing array, if it's smaller than the specified capacity. Valid bytes are kept.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length)
+            return;
+
+        final byte[] newBuffer = new byte[capacity];
+        System.arraycopy(buffer, 0, newBuffer, 0, count);
+        buffer = newBuffer;
+    }
+
+    /**
+     * Gives buffer back into the pool, it was obtained from.
+     */
+    public void recycle() {
+        count = 0;
+        if (pool != null)
+            pool.recycle(this);
+    }
+
+    @Override
+    public void write(int b) {
+        if (count == buffer.length)
+            grow(count + 1);
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException();
+        if (count + len > buffer.length)
+            grow(count + len);
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void grow(int minCapacity) {
+        // by half, not twice - buffers are usually pre-sized close to the result
+        ensureCapacity(Math.max(minCapacity, buffer.length + (buffer.length >> 1)));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.graphics.Bitmap.CompressFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of {@link ru.jango.j0widget.camera.EncodeBuffer}s for encoding pictures. Buffers are
+ * pre-sized by a running estimate of compressed bytes per pixel for every format, so usually
+ * encoding doesn't need to grow the buffer at all, and are reused after
+ * {@link ru.jango.j0widget.camera.EncodeBuffer#recycle()}.
+ * <p/>
+ * Pool keeps at most {@link #getMaxPooledBuffers()} buffers and at most
+ * {@link #getMaxPooledBytes()} bytes; methods are synchronized.
+ */
+public class EncodeBufferPool {
+
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 4;
+    public static final int DEFAULT_MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Estimated size is increased by this factor, so that most results fit without growing.
+     */
+    private static final float HEADROOM = 1.25f;
+    private static final int MIN_CAPACITY = 16 * 1024;
+
+    private static EncodeBufferPool defaultPool;
+
+    private final List<EncodeBuffer> buffers;
+    private int maxPooledBuffers;
+    private int maxPooledBytes;
+    private int pooledBytes;
+
+    // estimated bytes per pixel by CompressFormat ordinal
+    private final float[] bytesPerPixel;
+
+    public EncodeBufferPool() {
+        buffers = new ArrayList<EncodeBuffer>();
+        maxPooledBuffers = DEFAULT_MAX_POOLED_BUFFERS;
+        maxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+        bytesPerPixel = new float[CompressFormat.values().length];
+        for (CompressFormat format : CompressFormat.values())
+            bytesPerPixel[format.ordinal()] = format == CompressFormat.PNG ? 1.5f : 0.25f;
+    }
+
+    /**
+     * Returns pool, that is shared by all {@link ru.jango.j0widget.camera.BitmapProcessor}s by
+     * default.
+     */
+    public static synchronized EncodeBufferPool getDefault() {
+        if (defaultPool == null)
+            defaultPool = new EncodeBufferPool();
+
+        return defaultPool;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public synchronized int getMaxPooledBuffers() {
+        return maxPooledBuffers;
+    }
+
+    public synchronized void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = Math.max(0, maxPooledBuffers);
+        trim();
+    }
+
+    public synchronized int getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public synchronized void setMaxPooledBytes(int maxPooledBytes) {
+        this.maxPooledBytes = Math.max(0, maxPooledBytes);
+        trim();
+    }
+
+    /**
+     * Returns number of bytes, that are held by buffers in the pool.
+     */
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Returns current estimate of compressed bytes per pixel for the format.
+     */
+    public synchronized float getBytesPerPixel(CompressFormat format) {
+        return bytesPerPixel[format.ordinal()];
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Pool staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns buffer, that likely fits the picture of the specified size in the format without
+     * growing.
+     */
+    public EncodeBuffer obtain(CompressFormat format, int width, int height) {
+        final long estimate;
+        synchronized (this) {
+            estimate = (long) (((long) width) * height * bytesPerPixel[format.ordinal()] * HEADROOM);
+        }
+
+        return obtain((int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_CAPACITY, estimate)));
+    }
+
+    /**
+     * Returns empty buffer with at least the specified capacity.
+     */
+    public EncodeBuffer obtain(int capacity) {
+        EncodeBuffer result = null;
+        synchronized (this) {
+            // the smallest one, that fits; otherwise the biggest one - it would be grown
+            EncodeBuffer fitting = null;
+            EncodeBuffer biggest = null;
+            for (EncodeBuffer buffer : buffers) {
+                if (buffer.capacity() >= capacity && (fitting == null || buffer.capacity() < fitting.capacity()))
+                    fitting = buffer;
+                if (biggest == null || buffer.capacity() > biggest.capacity())
+                    biggest = buffer;
+            }
+            result = fitting != null ? fitting : biggest;
+
+            if (result != null) {
+                buffers.remove(result);
+                pooledBytes -= result.capacity();
+            }
+        }
+
+        if (result == null)
+            return new EncodeBuffer(this, capacity);
+
+        result.reset();
+        result.ensureCapacity(capacity);
+        return result;
+    }
+
+    /**
+     * Updates bytes per pixel estimate by the actual result of encoding.
+     */
+    public synchronized void record(CompressFormat format, int width, int height, int size) {
+        final long pixels = ((long) width) * height;
+        if (pixels <= 0 || size <= 0)
+            return;
+
+        // exponential moving average over about 4 pictures
+        final int i = format.ordinal();
+        bytesPerPixel[i] += (((float) size) / pixels - bytesPerPixel[i]) / 4f;
+    }
+
+    synchronized void recycle(EncodeBuffer buffer) {
+        if (buffers.contains(buffer))
+            return;
+
+        buffers.add(buffer);
+        pooledBytes += buffer.capacity();
+        trim();
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public synchronized void clear() {
+        buffers.clear();
+        pooledBytes = 0;
+    }
+
+    // should be called under lock; the smallest buffers are dropped first
+    private void trim() {
+        while (!buffers.isEmpty() && (buffers.size() > maxPooledBuffers || pooledBytes > maxPooledBytes)) {
+            EncodeBuffer smallest = buffers.get(0);
+            for (EncodeBuffer buffer : buffers)
+                if (buffer.capacity() < smallest.capacity()) smallest = buffer;
+
+            buffers.remove(smallest);
+            pooledBytes -= smallest.capacity();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * {@link ru.jango.j0widget.camera.PreviewPolicy}, that lowers configuration of another policy
+ * by pressure level (see {@link ru.jango.j0widget.camera.PressureGovernor}). At level 0 choice of
+ * the base policy is used as is. At level N pixels per second budget is the base one divided by
+ * 2^N, and the richest configuration within the budget is chosen among sizes with the same
+ * aspect ratio, that are not bigger than the base one, and fps ranges, that are not faster.
+ * If nothing fits, the cheapest of them is used.
+ */
+public class GovernedPreviewPolicy implements PreviewPolicy {
+
+    private static final double MAX_ASPECT_ERROR = 0.1d;
+    private static final int NOMINAL_FPS = 30000;
+
+    private final PreviewPolicy base;
+    private int level;
+
+    public GovernedPreviewPolicy(PreviewPolicy base) {
+        this.base = base;
+    }
+
+    public PreviewPolicy getBasePolicy() {
+        return base;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets pressure level; takes effect on next {@link #choose(java.util.List, java.util.List, int, int)}.
+     */
+    public void setLevel(int level) {
+        this.level = Math.max(0, level);
+    }
+
+    @Override
+    public PreviewConfig choose(List<Camera.Size> sizes, List<int[]> fpsRanges, int viewWidth, int viewHeight) {
+        final PreviewConfig nominal = base.choose(sizes, fpsRanges, viewWidth, viewHeight);
+        if (level == 0 || nominal == null)
+            return nominal;
+
+        final long nominalPixels = ((long) nominal.getWidth()) * nominal.getHeight();
+        final int nominalFps = nominal.hasFpsRange() ? nominal.getMaxFps() : NOMINAL_FPS;
+        final long budget = nominalPixels * nominalFps / 1000L >> Math.min(level, 30);
+        final double nominalAspect = ((double) nominal.getWidth()) / Math.max(1, nominal.getHeight());
+        final boolean useFps = nominal.hasFpsRange() && fpsRanges != null && !fpsRanges.isEmpty();
+
+        PreviewConfig best = null;
+        long bestCost = -1;
+        PreviewConfig cheapest = null;
+        long cheapestCost = Long.MAX_VALUE;
+
+        for (Camera.Size size : sizes) {
+            final long pixels = ((long) size.width) * size.height;
+            final double aspect = ((double) size.width) / Math.max(1, size.height);
+            if (pixels > nominalPixels || Math.abs(Math.log(aspect / nominalAspect)) > MAX_ASPECT_ERROR)
+                continue;
+
+            if (!useFps) {
+                final long cost = pixels * NOMINAL_FPS / 1000L;
+                final PreviewConfig config = new PreviewConfig(size.width, size.height);
+                if (cost <= budget && cost > bestCost) { best = config; bestCost = cost; }
+                if (cost < cheapestCost) { cheapest = config; cheapestCost = cost; }
+                continue;
+            }
+
+            for (int[] range : fpsRanges) {
+                final int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+                if (max > nominalFps)
+                    continue;
+
+                final long cost = pixels * max / 1000L;
+                final PreviewConfig config = new PreviewConfig(size.width, size.height,
+                        range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], max);
+                if (cost <= budget && cost > bestCost) { best = config; bestCost = cost; }
+                if (cost < cheapestCost) { cheapest = config; cheapestCost = cost; }
+            }
+        }
+
+        if (best != null) return best;
+        if (cheapest != null) return cheapest;
+        return nominal;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+/**
+ * Converter of NV21 frames (default {@link android.hardware.Camera} preview format) into ARGB
+ * pixels, that could be passed into {@link android.graphics.Bitmap#setPixels(int[], int, int, int, int, int, int)}.
+ * <p/>
+ * Class works only with plain arrays and doesn't depend on Android API, so it could be used
+ * (and benchmarked) on a desktop JVM. Conversions don't allocate anything - output arrays should
+ * be created once and reused.
+ * <p/>
+ * Static methods do the conversion on the calling thread. An instance of the converter splits
+ * the frame into row bands and converts them in parallel on it's own fixed set of threads; the
+ * calling thread converts one of the bands itself.
+ */
+public class Nv21Converter {
+
+    private static final int KIND_ARGB = 0;
+    private static final int KIND_GRAY = 1;
+    private static final int KIND_ARGB_SCALED = 2;
+
+    private final Object lock = new Object();
+    private final int parallelism;
+    private final Thread[] workers;
+
+    // current job; guarded by lock
+    private int kind;
+    private byte[] src;
+    private int width;
+    private int height;
+    private int factor;
+    private int[] dst;
+    private int outRows;
+    private int jobGeneration;
+    private int pendingBands;
+    private boolean released;
+
+    /**
+     * @param parallelism   number of row bands (and threads, including the calling one), that
+     *                      would be used for one conversion
+     */
+    public Nv21Converter(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.workers = new Thread[this.parallelism - 1];
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new BandWorker(i + 1), Nv21Converter.class.getSimpleName() + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Stops converter's threads. Converter should not be used after that.
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            lock.notifyAll();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Parallel conversions
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Parallel version of {@link #toArgb(byte[], int, int, int[])}.
+     */
+    public void convertToArgb(byte[] nv21, int width, int height, int[] argb) {
+        checkArgs(nv21, width * height * 3 / 2, width, height, 1, argb);
+        runJob(KIND_ARGB, nv21, width, height, 1, argb, height);
+    }
+
+    /**
+     * Parallel version of {@link #toGray(byte[], int, int, int[])}.
+     */
+    public void convertToGray(byte[] nv21, int width, int height, int[] argb) {
+        checkArgs(nv21, width * height, width, height, 1, argb);
+        runJob(KIND_GRAY, nv21, width, height, 1, argb, height);
+    }
+
+    /**
+     * Parallel version of {@link #toArgbScaled(byte[], int, int, int, int[])}.
+     */
+    public void convertToArgbScaled(byte[] nv21, int width, int height, int factor, int[] argb) {
+        checkArgs(nv21, width * height * 3 / 2, width, height, factor, argb);
+        runJob(KIND_ARGB_SCALED, nv21, width, height, factor, argb, height / factor);
+    }
+
+    private void runJob(int kind, byte[] src, int width, int height, int factor, int[] dst, int outRows) {
+        if (workers.length == 0) {
+            convertRows(kind, src, width, height, factor, dst, 0, outRows);
+            return;
+        }
+
+        synchronized (this) {
+            synchronized (lock) {
+                if (released)
+                    throw new IllegalStateException("Converter was released");
+
+                this.kind = kind;
+                this.src = src;
+                this.width = width;
+                this.height = height;
+                this.factor = factor;
+                this.dst = dst;
+                this.outRows = outRows;
+                this.pendingBands = workers.length;
+                this.jobGeneration++;
+                lock.notifyAll();
+            }
+
+            try {
+                convertRows(kind, src, width, height, factor, dst, 0, bandEnd(0, outRows));
+            } finally {
+                synchronized (lock) {
+                    while (pendingBands > 0) {
+                        try { lock.wait(); }
+                        catch (InterruptedException ignored) { }
+                    }
+
+                    this.src = null;
+                    this.dst = null;
+                }
+            }
+        }
+    }
+
+    private int bandEnd(int band, int rows) {
+        return (int) (((long) rows) * (band + 1) / parallelism);
+    }
+
+    private int bandStart(int band, int rows) {
+        return (int) (((long) rows) * band / parallelism);
+    }
+
+    private class BandWorker implements Runnable {
+        private final int band;
+        private int seenGeneration;
+
+        private BandWorker(int band) {
+            this.band = band;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final int jobKind, jobWidth, jobHeight, jobFactor, jobRows;
+                final byte[] jobSrc;
+                final int[] jobDst;
+
+                synchronized (lock) {
+                    while (!released && seenGeneration == jobGeneration) {
+                        try { lock.wait(); }
+                        catch (InterruptedException ignored) { }
+                    }
+
+                    if (released) return;
+
+                    seenGeneration = jobGeneration;
+                    jobKind = kind;
+                    jobSrc = src;
+                    jobWidth = width;
+                    jobHeight = height;
+                    jobFactor = factor;
+                    jobDst = dst;
+                    jobRows = outRows;
+                }
+
+                try {
+                    convertRows(jobKind, jobSrc, jobWidth, jobHeight, jobFactor, jobDst,
+                            bandStart(band, jobRows), bandEnd(band, jobRows));
+                } catch (RuntimeException ignored) {
+                    // arguments are checked before the job starts; worker just should not die
+                }
+
+                synchronized (lock) {
+                    pendingBands--;
+                    if (pendingBands == 0) lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Conversion kernels
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Converts NV21 frame into ARGB pixels (ITU-R BT.601 coefficients).
+     *
+     * @param nv21      source frame; at least width*height*3/2 bytes
+     * @param width     frame width
+     * @param height    frame height
+     * @param argb      destination array; at least width*height elements
+     */
+    public static void toArgb(byte[] nv21, int width, int height, int[] argb) {
+        checkArgs(nv21, width * height * 3 / 2, width, height, 1, argb);
+        convertRows(KIND_ARGB, nv21, width, height, 1, argb, 0, height);
+    }
+
+    /**
+     * Converts luma plane of the NV21 frame into grey ARGB pixels; chroma is ignored.
+     *
+     * @param nv21      source frame; at least width*height bytes
+     * @param width     frame width
+     * @param height    frame height
+     * @param argb      destination array; at least width*height elements
+     */
+    public static void toGray(byte[] nv21, int width, int height, int[] argb) {
+        checkArgs(nv21, width * height, width, height, 1, argb);
+        convertRows(KIND_GRAY, nv21, width, height, 1, argb, 0, height);
+    }
+
+    /**
+     * Converts NV21 frame into ARGB pixels and scales it down by integer factor at the same time.
+     * Every output pixel is sampled from the center of the corresponding factor x factor block,
+     * so scaling costs nothing extra - only (width/factor)*(height/factor) pixels are converted.
+     *
+     * @param nv21      source frame; at least width*height*3/2 bytes
+     * @param width     frame width
+     * @param height    frame height
+     * @param factor    scale down factor, at least 1; 1 means no scaling
+     * @param argb      destination array; at least (width/factor)*(height/factor) elements
+     */
+    public static void toArgbScaled(byte[] nv21, int width, int height, int factor, int[] argb) {
+        checkArgs(nv21, width * height * 3 / 2, width, height, factor, argb);
+        convertRows(KIND_ARGB_SCALED, nv21, width, height, factor, argb, 0, height / factor);
+    }
+
+    /**
+     * @param srcSize   bytes of the source, that conversion reads: the whole frame, or only luma
+     * @param factor    scale down factor; output size is (width/factor)*(height/factor)
+     */
+    private static void checkArgs(byte[] nv21, int srcSize, int width, int height, int factor, int[] argb) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Wrong frame size: " + width + "x" + height);
+        if (factor <= 0)
+            throw new IllegalArgumentException("Wrong scale factor: " + factor);
+        if (nv21 == null || nv21.length < srcSize)
+            throw new IllegalArgumentException("Source array is too small for " + width + "x" + height + " frame");
+
+        final int outSize = (width / factor) * (height / factor);
+        if (argb == null || argb.length < outSize)
+            throw new IllegalArgumentException("Destination array should contain at least " + outSize + " elements");
+    }
+
+    private static void convertRows(int kind, byte[] src, int width, int height, int factor,
+                                    int[] dst, int fromRow, int toRow) {
+        switch (kind) {
+            case KIND_ARGB: argbRows(src, width, height, dst, fromRow, toRow); break;
+            case KIND_GRAY: grayRows(src, width, dst, fromRow, toRow); break;
+            case KIND_ARGB_SCALED: argbScaledRows(src, width, height, factor, dst, fromRow, toRow); break;
+        }
+    }
+
+    private static void argbRows(byte[] src, int width, int height, int[] dst, int fromRow, int toRow) {
+        final int frameSize = width * height;
+        for (int row = fromRow; row < toRow; row++) {
+            int yp = row * width;
+            final int uvRow = frameSize + (row >> 1) * width;
+            int v = 0, u = 0;
+
+            for (int col = 0; col < width; col++, yp++) {
+                if ((col & 1) == 0) {
+                    final int uvp = uvRow + col;
+                    v = (0xff & src[uvp]) - 128;
+                    u = (0xff & src[uvp + 1]) - 128;
+                }
+
+                dst[yp] = yuvToArgb(0xff & src[yp], u, v);
+            }
+        }
+    }
+
+    private static void grayRows(byte[] src, int width, int[] dst, int fromRow, int toRow) {
+        final int end = toRow * width;
+        for (int p = fromRow * width; p < end; p++)
+            dst[p] = 0xff000000 | ((0xff & src[p]) * 0x00010101);
+    }
+
+    private static void argbScaledRows(byte[] src, int width, int height, int factor,
+                                       int[] dst, int fromRow, int toRow) {
+        final int frameSize = width * height;
+        final int outWidth = width / factor;
+        final int half = factor / 2;
+
+        for (int outRow = fromRow; outRow < toRow; outRow++) {
+            final int row = outRow * factor + half;
+            final int yRow = row * width;
+            final int uvRow = frameSize + (row >> 1) * width;
+            int op = outRow * outWidth;
+
+            for (int outCol = 0, col = half; outCol < outWidth; outCol++, col += factor, op++) {
+                final int uvp = uvRow + (col & ~1);
+                dst[op] = yuvToArgb(0xff & src[yRow + col],
+                        (0xff & src[uvp + 1]) - 128,
+                        (0xff & src[uvp]) - 128);
+            }
+        }
+    }
+
+    /**
+     * Fixed point YUV to RGB conversion.
+     *
+     * @param y luma in [0..255]
+     * @param u blue chroma difference in [-128..127]
+     * @param v red chroma difference in [-128..127]
+     */
+    private static int yuvToArgb(int y, int u, int v) {
+        y -= 16;
+        if (y < 0) y = 0;
+
+        final int y1192 = 1192 * y;
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+
+        if (r < 0) r = 0; else if (r > 262143) r = 262143;
+        if (g < 0) g = 0; else if (g > 262143) g = 262143;
+        if (b < 0) b = 0; else if (b > 262143) b = 262143;
+
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Cheap 64-bit perceptual hash (difference hash, dHash) of a picture: picture is reduced to 9x8
+ * luminance grid, and every bit tells, if a cell is brighter, than it's right neighbour. Nearly
+ * identical pictures have hashes with small Hamming distance ({@link #distance(long, long)}),
+ * unlike cryptographic hashes, and small changes of exposure don't matter.
+ * <p/>
+ * Hash could be computed from JPEG data (it's decoded heavily subsampled, so it takes a small
+ * part of full decoding) or right from NV21 preview frame.
+ */
+public final class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    // subsampled picture should still have several pixels per grid cell
+    private static final int MIN_DECODED_SIDE = 4 * GRID_WIDTH;
+
+    // max points per grid cell side, that are averaged from NV21 frame
+    private static final int MAX_CELL_SAMPLES = 4;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Returns number of different bits of two hashes.
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * Computes hash of JPEG (or any other format, that {@link android.graphics.BitmapFactory}
+     * supports) picture.
+     *
+     * @throws IllegalArgumentException if the data could not be decoded
+     */
+    public static long ofEncoded(byte[] data) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new IllegalArgumentException("Picture could not be decoded");
+
+        int sampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= MIN_DECODED_SIDE)
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        final Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (decoded == null)
+            throw new IllegalArgumentException("Picture could not be decoded");
+
+        final Bitmap grid = Bitmap.createScaledBitmap(decoded, GRID_WIDTH, GRID_HEIGHT, true);
+        final int[] pixels = new int[GRID_WIDTH * GRID_HEIGHT];
+        grid.getPixels(pixels, 0, GRID_WIDTH, 0, 0, GRID_WIDTH, GRID_HEIGHT);
+        if (grid != decoded) grid.recycle();
+        decoded.recycle();
+
+        final int[] luma = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            final int c = pixels[i];
+            luma[i] = (299 * ((c >> 16) & 0xff) + 587 * ((c >> 8) & 0xff) + 114 * (c & 0xff)) / 1000;
+        }
+
+        return ofGrid(luma);
+    }
+
+    /**
+     * Computes hash of NV21 frame, using only it's luminance plane.
+     */
+    public static long ofNv21(byte[] nv21, int width, int height) {
+        final int[] luma = new int[GRID_WIDTH * GRID_HEIGHT];
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            final int top = gy * height / GRID_HEIGHT;
+            final int bottom = (gy + 1) * height / GRID_HEIGHT;
+            final int stepY = Math.max(1, (bottom - top) / MAX_CELL_SAMPLES);
+
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                final int left = gx * width / GRID_WIDTH;
+                final int right = (gx + 1) * width / GRID_WIDTH;
+                final int stepX = Math.max(1, (right - left) / MAX_CELL_SAMPLES);
+
+                int sum = 0;
+                int count = 0;
+                for (int y = top; y < bottom; y += stepY)
+                    for (int x = left; x < right; x += stepX) {
+                        sum += nv21[y * width + x] & 0xff;
+                        count++;
+                    }
+
+                luma[gy * GRID_WIDTH + gx] = count == 0 ? 0 : sum / count;
+            }
+        }
+
+        return ofGrid(luma);
+    }
+
+    private static long ofGrid(int[] luma) {
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++)
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luma[y * GRID_WIDTH + x] > luma[y * GRID_WIDTH + x + 1])
+                    hash |= 1;
+            }
+
+        return hash;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+/**
+ * Decides, how much camera workload should be reduced on hot or busy devices. Governor is fed
+ * periodically by {@link #update(long, long)} with measured preview frame processing time (see
+ * {@link ru.jango.j0widget.camera.PreviewFrameDispatcher#getAverageProcessingTime()}) and
+ * picture processing queue latency, and keeps a pressure level from 0 (no pressure) to
+ * {@link #MAX_LEVEL}.
+ * <p/>
+ * Level goes one step up, when any of the measurements exceeds it's threshold during
+ * {@link #getStepDownSamples()} updates in a row, and one step down, when all of them are below
+ * {@link #getRecoveryRatio()} of thresholds during {@link #getStepUpSamples()} updates in a row.
+ * Measurements between recovery and pressure thresholds keep the level, so it doesn't bounce.
+ * <p/>
+ * What a level means is decided by the owner, usually
+ * {@link ru.jango.j0widget.camera.fragment.AbstractCameraFragment}: it lowers preview size and
+ * fps by {@link ru.jango.j0widget.camera.GovernedPreviewPolicy} and processing parallelism.
+ * Every level change is published into {@link GovernorListener}.
+ */
+public class PressureGovernor {
+
+    public static final int MAX_LEVEL = 3;
+
+    public static final long DEFAULT_FRAME_TIME_THRESHOLD = 40;
+    public static final long DEFAULT_QUEUE_LATENCY_THRESHOLD = 1500;
+    public static final float DEFAULT_RECOVERY_RATIO = 0.5f;
+    public static final int DEFAULT_STEP_DOWN_SAMPLES = 3;
+    public static final int DEFAULT_STEP_UP_SAMPLES = 10;
+
+    private long frameTimeThreshold;
+    private long queueLatencyThreshold;
+    private float recoveryRatio;
+    private int stepDownSamples;
+    private int stepUpSamples;
+
+    private int level;
+    private int overSamples;
+    private int underSamples;
+
+    private GovernorListener listener;
+
+    public PressureGovernor() {
+        frameTimeThreshold = DEFAULT_FRAME_TIME_THRESHOLD * 1000L;
+        queueLatencyThreshold = DEFAULT_QUEUE_LATENCY_THRESHOLD * 1000L;
+        recoveryRatio = DEFAULT_RECOVERY_RATIO;
+        stepDownSamples = DEFAULT_STEP_DOWN_SAMPLES;
+        stepUpSamples = DEFAULT_STEP_UP_SAMPLES;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public long getFrameTimeThreshold() {
+        return frameTimeThreshold / 1000L;
+    }
+
+    /**
+     * Sets max acceptable time in milliseconds of processing one preview frame.
+     */
+    public void setFrameTimeThreshold(long millis) {
+        this.frameTimeThreshold = millis * 1000L;
+    }
+
+    public long getQueueLatencyThreshold() {
+        return queueLatencyThreshold / 1000L;
+    }
+
+    /**
+     * Sets max acceptable time in milliseconds, that a picture could wait for processing.
+     */
+    public void setQueueLatencyThreshold(long millis) {
+        this.queueLatencyThreshold = millis * 1000L;
+    }
+
+    public float getRecoveryRatio() {
+        return recoveryRatio;
+    }
+
+    /**
+     * Sets part of thresholds, that measurements should fall below to step the level down.
+     * Should be in (0..1).
+     */
+    public void setRecoveryRatio(float recoveryRatio) {
+        this.recoveryRatio = recoveryRatio;
+    }
+
+    public int getStepDownSamples() {
+        return stepDownSamples;
+    }
+
+    /**
+     * Sets number of updates in a row with exceeded thresholds, that raises the level.
+     */
+    public void setStepDownSamples(int stepDownSamples) {
+        this.stepDownSamples = Math.max(1, stepDownSamples);
+    }
+
+    public int getStepUpSamples() {
+        return stepUpSamples;
+    }
+
+    /**
+     * Sets number of updates in a row with measurements below recovery thresholds, that lowers
+     * the level. Usually it's bigger, than {@link #getStepDownSamples()}: it's better to react on
+     * pressure fast and to recover slowly.
+     */
+    public void setStepUpSamples(int stepUpSamples) {
+        this.stepUpSamples = Math.max(1, stepUpSamples);
+    }
+
+    public GovernorListener getGovernorListener() {
+        return listener;
+    }
+
+    public void setGovernorListener(GovernorListener listener) {
+        this.listener = listener;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Governor staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Feeds governor with new measurements. Listener is called on the calling thread.
+     *
+     * @param frameTimeMicros       preview frame processing time in microseconds
+     * @param queueLatencyMicros    picture processing queue latency in microseconds
+     * @return  current level
+     */
+    public int update(long frameTimeMicros, long queueLatencyMicros) {
+        final int oldLevel;
+        final int newLevel;
+
+        synchronized (this) {
+            oldLevel = level;
+            final boolean over = frameTimeMicros > frameTimeThreshold
+                    || queueLatencyMicros > queueLatencyThreshold;
+            final boolean under = frameTimeMicros < frameTimeThreshold * recoveryRatio
+                    && queueLatencyMicros < queueLatencyThreshold * recoveryRatio;
+
+            if (over) {
+                underSamples = 0;
+                if (++overSamples >= stepDownSamples && level < MAX_LEVEL) {
+                    overSamples = 0;
+                    level++;
+                }
+            } else if (under) {
+                overSamples = 0;
+                if (++underSamples >= stepUpSamples && level > 0) {
+                    underSamples = 0;
+                    level--;
+                }
+            } else {
+                overSamples = 0;
+                underSamples = 0;
+            }
+
+            newLevel = level;
+        }
+
+        if (newLevel != oldLevel && listener != null)
+            listener.onLevelChanged(oldLevel, newLevel, frameTimeMicros, queueLatencyMicros);
+
+        return newLevel;
+    }
+
+    /**
+     * Returns to level 0 without notifying listener.
+     */
+    public synchronized void reset() {
+        level = 0;
+        overSamples = 0;
+        underSamples = 0;
+    }
+
+    public interface GovernorListener {
+
+        /**
+         * Is called on every pressure level change.
+         *
+         * @param oldLevel              previous level
+         * @param newLevel              new level, differs from the old one by 1
+         * @param frameTimeMicros       frame processing time, that caused the change
+         * @param queueLatencyMicros    processing queue latency, that caused the change
+         */
+        public void onLevelChanged(int oldLevel, int newLevel, long frameTimeMicros, long queueLatencyMicros);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+/**
+ * Preview configuration, chosen by {@link ru.jango.j0widget.camera.PreviewPolicy}: preview size
+ * and preview fps range. Fps values are in the camera API units (frames per 1000 seconds).
+ */
+public class PreviewConfig {
+
+    public static final int FPS_NOT_SET = 0;
+
+    private final int width;
+    private final int height;
+    private final int minFps;
+    private final int maxFps;
+
+    public PreviewConfig(int width, int height) {
+        this(width, height, FPS_NOT_SET, FPS_NOT_SET);
+    }
+
+    public PreviewConfig(int width, int height, int minFps, int maxFps) {
+        this.width = width;
+        this.height = height;
+        this.minFps = minFps;
+        this.maxFps = maxFps;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns min preview fps multiplied by 1000, or {@link #FPS_NOT_SET}.
+     */
+    public int getMinFps() {
+        return minFps;
+    }
+
+    /**
+     * Returns max preview fps multiplied by 1000, or {@link #FPS_NOT_SET}.
+     */
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public boolean hasFpsRange() {
+        return minFps != FPS_NOT_SET && maxFps != FPS_NOT_SET;
+    }
+
+    /**
+     * Returns number of pixels, that camera pushes through the pipeline per second at max fps.
+     * If fps range is not set, 30 fps are assumed.
+     */
+    public long getPixelsPerSecond() {
+        return ((long) width) * height * (hasFpsRange() ? maxFps : 30000) / 1000L;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PreviewConfig)) return false;
+
+        final PreviewConfig other = (PreviewConfig) o;
+        return width == other.width && height == other.height
+                && minFps == other.minFps && maxFps == other.maxFps;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((width * 31 + height) * 31 + minFps) * 31 + maxFps;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + (hasFpsRange() ? " @" + minFps + ".." + maxFps : "");
+    }
+}
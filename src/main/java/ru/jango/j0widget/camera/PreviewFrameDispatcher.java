@@ -0,0 +1,426 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Process;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Delivers preview frames (NV21 byte arrays) from {@link android.hardware.Camera} to a set of
+ * {@link ru.jango.j0widget.camera.PreviewFrameDispatcher.FrameConsumer}s on a worker thread.
+ * <p/>
+ * Features:
+ * <ul>
+ * <li>fixed pool of callback buffers ({@link #setBufferCount(int)}) - no allocations per frame</li>
+ * <li>drop-oldest policy: if consumers are still busy with a frame, only the newest of the
+ * following frames is kept, older ones are given back to the camera</li>
+ * <li>target analysis rate ({@link #setTargetFps(int)}); frames above that rate are skipped
+ * right away</li>
+ * <li>counters of processed, dropped and skipped frames and average processing time</li>
+ * </ul>
+ * Object is usually managed by {@link ru.jango.j0widget.camera.CameraPreview}, that attaches and
+ * detaches it together with starting and stopping preview.
+ */
+public class PreviewFrameDispatcher implements Camera.PreviewCallback {
+
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+    public static final int DEFAULT_TARGET_FPS = 10;
+
+    private final Object lock = new Object();
+
+    private volatile FrameConsumer[] consumers;
+    private int bufferCount;
+    private int targetFps;
+    private long frameIntervalNanos;
+
+    // guarded by lock
+    private Camera camera;
+    private byte[][] buffers;
+    private int frameWidth;
+    private int frameHeight;
+    private int generation;
+    private byte[] pendingFrame;
+    private long pendingTimestamp;
+    // frame, that is being passed to consumers right now
+    private byte[] inFlightFrame;
+    private boolean running;
+    private Thread worker;
+
+    private long lastAcceptedNanos;
+    private volatile long processedFrames;
+    private volatile long droppedFrames;
+    private volatile long skippedFrames;
+    private volatile long averageProcessingNanos;
+
+    public PreviewFrameDispatcher() {
+        consumers = new FrameConsumer[0];
+        bufferCount = DEFAULT_BUFFER_COUNT;
+        setTargetFps(DEFAULT_TARGET_FPS);
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Adds consumer, that would receive preview frames. If preview is already running, frames
+     * delivery starts immediately.
+     */
+    public void addFrameConsumer(FrameConsumer consumer) {
+        synchronized (lock) {
+            for (FrameConsumer c : consumers)
+                if (c == consumer) return;
+
+            final FrameConsumer[] newConsumers = new FrameConsumer[consumers.length + 1];
+            System.arraycopy(consumers, 0, newConsumers, 0, consumers.length);
+            newConsumers[consumers.length] = consumer;
+            consumers = newConsumers;
+
+            if (camera != null && consumers.length == 1)
+                installCallback();
+        }
+    }
+
+    public void removeFrameConsumer(FrameConsumer consumer) {
+        synchronized (lock) {
+            int index = -1;
+            for (int i = 0; i < consumers.length; i++)
+                if (consumers[i] == consumer) index = i;
+            if (index == -1) return;
+
+            final FrameConsumer[] newConsumers = new FrameConsumer[consumers.length - 1];
+            System.arraycopy(consumers, 0, newConsumers, 0, index);
+            System.arraycopy(consumers, index + 1, newConsumers, index, newConsumers.length - index);
+            consumers = newConsumers;
+
+            if (camera != null && consumers.length == 0)
+                uninstallCallback();
+        }
+    }
+
+    public boolean hasFrameConsumers() {
+        return consumers.length > 0;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    /**
+     * Sets number of callback buffers, that are passed to the camera. At least 2 are needed: one is
+     * being processed by consumers, others are filled by the camera. Takes effect on next
+     * {@link #attach(android.hardware.Camera, int, int)}.
+     */
+    public void setBufferCount(int bufferCount) {
+        this.bufferCount = Math.max(2, bufferCount);
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * Sets max rate of frames delivery to the consumers. Values &lt;= 0 mean 'as fast as camera
+     * and consumers can'.
+     */
+    public void setTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+        this.frameIntervalNanos = targetFps > 0 ? 1000000000L / targetFps : 0;
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    /**
+     * Returns number of frames, that were actually passed to the consumers.
+     */
+    public long getProcessedFrames() {
+        return processedFrames;
+    }
+
+    /**
+     * Returns number of frames, that were dropped because consumers could not keep up.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns number of frames, that were skipped to keep the rate of {@link #getTargetFps()}.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * Returns smoothed time in microseconds, that consumers spend on one frame all together, or 0
+     * if there are no consumers.
+     */
+    public long getAverageProcessingTime() {
+        return consumers.length == 0 ? 0 : averageProcessingNanos / 1000L;
+    }
+
+    public void resetCounters() {
+        averageProcessingNanos = 0;
+        processedFrames = 0;
+        droppedFrames = 0;
+        skippedFrames = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Dispatcher staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Connects dispatcher to the camera. Should be called before {@link Camera#startPreview()}.
+     * Buffers are reallocated only if the frame size has changed.
+     *
+     * @param camera    camera to grab frames from
+     * @param width     preview width
+     * @param height    preview height
+     */
+    public void attach(Camera camera, int width, int height) {
+        synchronized (lock) {
+            this.camera = camera;
+            if (width != frameWidth || height != frameHeight || buffers == null
+                    || buffers.length != bufferCount) {
+                frameWidth = width;
+                frameHeight = height;
+                buffers = null;
+            }
+
+            if (consumers.length > 0)
+                installCallback();
+        }
+    }
+
+    /**
+     * Disconnects dispatcher from the camera. Frame, that is currently processed, would be
+     * finished, but it's buffer would not be returned to that camera.
+     */
+    public void detach(Camera camera) {
+        synchronized (lock) {
+            if (this.camera != camera)
+                return;
+
+            uninstallCallback();
+            pendingFrame = null;
+            this.camera = null;
+        }
+    }
+
+    /**
+     * Stops worker thread and frees buffers. Dispatcher could be attached again after that.
+     */
+    public void release() {
+        synchronized (lock) {
+            if (camera != null) uninstallCallback();
+            camera = null;
+            buffers = null;
+            pendingFrame = null;
+            inFlightFrame = null;
+            running = false;
+            worker = null;
+            lock.notifyAll();
+        }
+    }
+
+    // should be called under lock
+    private void installCallback() {
+        if (buffers == null) {
+            final int bufferSize = frameWidth * frameHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            buffers = new byte[bufferCount][];
+            for (int i = 0; i < bufferCount; i++)
+                buffers[i] = new byte[bufferSize];
+        }
+
+        // buffers, that are queued in the old camera or pending, belong to the previous generation
+        // and would not be recycled; buffer, that is being read by consumers, is given to the
+        // camera by the worker, when it's done - every buffer is given to the camera exactly once
+        generation++;
+        pendingFrame = null;
+        try {
+            camera.setPreviewCallbackWithBuffer(null);
+            for (byte[] buffer : buffers)
+                if (buffer != inFlightFrame)
+                    camera.addCallbackBuffer(buffer);
+            camera.setPreviewCallbackWithBuffer(this);
+        } catch (Exception e) {
+            LogUtil.e(PreviewFrameDispatcher.class, "Installing preview callback failed: " + e);
+        }
+
+        startWorker();
+    }
+
+    // should be called under lock
+    private void uninstallCallback() {
+        try { camera.setPreviewCallbackWithBuffer(null); }
+        catch (Exception e) { LogUtil.e(PreviewFrameDispatcher.class, "Removing preview callback failed: " + e); }
+    }
+
+    // should be called under lock
+    private void startWorker() {
+        if (running) return;
+
+        running = true;
+        worker = new Thread(new Worker(), PreviewFrameDispatcher.class.getSimpleName());
+        worker.start();
+    }
+
+    /**
+     * Gives buffer back to the camera, if the buffer was obtained from the current camera
+     * connection (see {@link #installCallback()}).
+     */
+    private void recycleBuffer(byte[] buffer, int bufferGeneration) {
+        synchronized (lock) {
+            if (camera == null || buffers == null || bufferGeneration != generation)
+                return;
+
+            try { camera.addCallbackBuffer(buffer); }
+            catch (Exception e) { LogUtil.e(PreviewFrameDispatcher.class, "Recycling buffer failed: " + e); }
+        }
+    }
+
+    /**
+     * Gives the frame, that consumers are done with, back to the camera. Callback could be
+     * reinstalled while the frame was processed - than it's given under the new generation, if
+     * buffers were not reallocated.
+     */
+    private void finishFrame(byte[] frame) {
+        synchronized (lock) {
+            inFlightFrame = null;
+            if (camera == null || buffers == null)
+                return;
+
+            for (byte[] buffer : buffers)
+                if (buffer == frame) {
+                    try { camera.addCallbackBuffer(frame); }
+                    catch (Exception e) { LogUtil.e(PreviewFrameDispatcher.class, "Recycling buffer failed: " + e); }
+                    return;
+                }
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) return;
+
+        final long now = System.nanoTime();
+        if (consumers.length == 0 || now - lastAcceptedNanos < frameIntervalNanos) {
+            skippedFrames++;
+            recycleBuffer(data, generation);
+            return;
+        }
+
+        lastAcceptedNanos = now;
+        final byte[] dropped;
+        final int droppedGeneration;
+        synchronized (lock) {
+            droppedGeneration = generation;
+            dropped = pendingFrame;
+            pendingFrame = data;
+            pendingTimestamp = now;
+            lock.notifyAll();
+        }
+
+        if (dropped != null) {
+            droppedFrames++;
+            recycleBuffer(dropped, droppedGeneration);
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                final byte[] frame;
+                final long timestamp;
+                final int width;
+                final int height;
+
+                synchronized (lock) {
+                    while (running && worker == Thread.currentThread() && pendingFrame == null) {
+                        try { lock.wait(); }
+                        catch (InterruptedException ignored) { }
+                    }
+
+                    if (!running || worker != Thread.currentThread())
+                        return;
+
+                    frame = pendingFrame;
+                    timestamp = pendingTimestamp;
+                    width = frameWidth;
+                    height = frameHeight;
+                    pendingFrame = null;
+                    inFlightFrame = frame;
+                }
+
+                final long start = System.nanoTime();
+                final FrameConsumer[] current = consumers;
+                for (int i = 0; i < current.length; i++) {
+                    try {
+                        current[i].onPreviewFrame(frame, width, height, timestamp);
+                    } catch (Exception e) {
+                        LogUtil.e(PreviewFrameDispatcher.class, "Frame consumer failed: " + e);
+                    }
+                }
+
+                // exponential moving average over about 8 frames
+                final long elapsed = System.nanoTime() - start;
+                averageProcessingNanos = averageProcessingNanos == 0 ? elapsed :
+                        averageProcessingNanos + (elapsed - averageProcessingNanos) / 8;
+
+                processedFrames++;
+                finishFrame(frame);
+            }
+        }
+    }
+
+    public interface FrameConsumer {
+
+        /**
+         * Is called on dispatcher's worker thread for every accepted preview frame.
+         * <p/>
+         * <b>NOTE:</b> data array is valid only during this call - after it returns the array
+         * would be passed back to the camera and overwritten. Copy it, if it's needed later.
+         *
+         * @param data          frame in NV21 format
+         * @param width         frame width
+         * @param height        frame height
+         * @param timestampNanos    frame arrival time by {@link System#nanoTime()}
+         */
+        public void onPreviewFrame(byte[] data, int width, int height, long timestampNanos);
+    }
+}
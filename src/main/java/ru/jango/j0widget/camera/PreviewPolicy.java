@@ -0,0 +1,46 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * Strategy of choosing preview configuration for {@link ru.jango.j0widget.camera.CameraPreview}.
+ *
+ * @see ru.jango.j0widget.camera.AreaPreviewPolicy
+ * @see ru.jango.j0widget.camera.BandwidthPreviewPolicy
+ */
+public interface PreviewPolicy {
+
+    /**
+     * Chooses preview configuration. Is called only when camera, view size or orientation change.
+     *
+     * @param sizes         supported preview sizes; not empty
+     * @param fpsRanges     supported preview fps ranges (see
+     *                      {@link android.hardware.Camera.Parameters#getSupportedPreviewFpsRange()});
+     *                      may be NULL
+     * @param viewWidth     width of the view, where preview would be shown
+     * @param viewHeight    height of the view, where preview would be shown
+     * @return chosen configuration; size should be one of the supported
+     */
+    public PreviewConfig choose(List<Camera.Size> sizes, List<int[]> fpsRanges, int viewWidth, int viewHeight);
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * Small ring of the most recent preview frames for zero shutter lag capturing. Ring should be
+ * added as a consumer into {@link ru.jango.j0widget.camera.PreviewFrameDispatcher}; it copies
+ * every delivered frame into one of it's preallocated slots, so nothing is allocated per frame.
+ * <p/>
+ * On shutter a frame is chosen and copied out by {@link #copyFrame(long)}, and than compressed
+ * into JPEG by {@link android.graphics.YuvImage} - usually on a background thread. Resulting
+ * picture has preview resolution.
+ */
+public class ZslFrameRing implements PreviewFrameDispatcher.FrameConsumer {
+
+    public static final int DEFAULT_CAPACITY = 3;
+    public static final long DEFAULT_MAX_FRAME_AGE = 500;
+
+    private final byte[][] frames;
+    private final long[] timestamps;
+    private int frameWidth;
+    private int frameHeight;
+    private int nextSlot;
+    private int count;
+
+    private long maxFrameAgeNanos;
+    private long shutterLagCompensationNanos;
+
+    public ZslFrameRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ZslFrameRing(int capacity) {
+        frames = new byte[Math.max(1, capacity)][];
+        timestamps = new long[frames.length];
+
+        setMaxFrameAge(DEFAULT_MAX_FRAME_AGE);
+        setShutterLagCompensation(0);
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    public long getMaxFrameAge() {
+        return maxFrameAgeNanos / 1000000L;
+    }
+
+    /**
+     * Sets max age of the frame in milliseconds, that still could be used as a picture. Older
+     * frames are ignored.
+     */
+    public void setMaxFrameAge(long millis) {
+        this.maxFrameAgeNanos = millis * 1000000L;
+    }
+
+    public long getShutterLagCompensation() {
+        return shutterLagCompensationNanos / 1000000L;
+    }
+
+    /**
+     * Sets time in milliseconds, that would be subtracted from the shutter moment while choosing a
+     * frame. User usually taps a bit later, than the wanted moment has come; with compensation an
+     * older frame from the ring would be chosen. By default 0 - the most recent frame is chosen.
+     */
+    public void setShutterLagCompensation(long millis) {
+        this.shutterLagCompensationNanos = millis * 1000000L;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Ring staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized void onPreviewFrame(byte[] data, int width, int height, long timestampNanos) {
+        if (width != frameWidth || height != frameHeight) {
+            clear();
+            frameWidth = width;
+            frameHeight = height;
+        }
+
+        if (frames[nextSlot] == null || frames[nextSlot].length != data.length)
+            frames[nextSlot] = new byte[data.length];
+
+        System.arraycopy(data, 0, frames[nextSlot], 0, data.length);
+        timestamps[nextSlot] = timestampNanos;
+        nextSlot = (nextSlot + 1) % frames.length;
+        if (count < frames.length) count++;
+    }
+
+    /**
+     * Forgets all frames. Should be called, when preview stops - old frames are no more actual.
+     */
+    public synchronized void clear() {
+        count = 0;
+        nextSlot = 0;
+    }
+
+    /**
+     * Forgets all frames and frees memory of the slots; they are allocated again by the next
+     * frames.
+     */
+    public synchronized void trim() {
+        clear();
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = null;
+    }
+
+    /**
+     * Checks if there is a frame, that is not older than {@link #getMaxFrameAge()}.
+     *
+     * @param shutterNanos  shutter moment by {@link System#nanoTime()}
+     */
+    public synchronized boolean hasFrame(long shutterNanos) {
+        return findFrame(shutterNanos) != -1;
+    }
+
+    /**
+     * Chooses frame, that is the closest to (shutterNanos - {@link #getShutterLagCompensation()})
+     * and copies it out of the ring. Copying is fast, so the ring (and preview frames delivery)
+     * is blocked only for a moment; slow compressing could be done afterwards on any thread.
+     *
+     * @param shutterNanos  shutter moment by {@link System#nanoTime()}
+     * @return  copy of the frame, or NULL if there is no suitable frame
+     */
+    public synchronized Frame copyFrame(long shutterNanos) {
+        final int slot = findFrame(shutterNanos);
+        if (slot == -1)
+            return null;
+
+        final byte[] data = new byte[frames[slot].length];
+        System.arraycopy(frames[slot], 0, data, 0, data.length);
+        return new Frame(data, frameWidth, frameHeight, timestamps[slot]);
+    }
+
+    /**
+     * Chooses frame like {@link #copyFrame(long)} and compresses it into JPEG on the calling
+     * thread.
+     *
+     * @param shutterNanos  shutter moment by {@link System#nanoTime()}
+     * @param quality       JPEG quality [0..100]
+     * @return  JPEG picture, or NULL if there is no suitable frame
+     */
+    public byte[] compressToJpeg(long shutterNanos, int quality) {
+        final Frame frame = copyFrame(shutterNanos);
+        return frame == null ? null : frame.compressToJpeg(quality);
+    }
+
+    private int findFrame(long shutterNanos) {
+        final long target = shutterNanos - shutterLagCompensationNanos;
+        int best = -1;
+
+        for (int i = 0; i < count; i++) {
+            final int slot = (nextSlot - 1 - i + frames.length) % frames.length;
+            if (shutterNanos - timestamps[slot] > maxFrameAgeNanos)
+                continue;
+
+            if (best == -1 || Math.abs(timestamps[slot] - target) < Math.abs(timestamps[best] - target))
+                best = slot;
+        }
+
+        return best;
+    }
+
+    /**
+     * Frame, that was copied out of the ring.
+     */
+    public static class Frame {
+
+        private final byte[] data;
+        private final int width;
+        private final int height;
+        private final long timestampNanos;
+
+        private Frame(byte[] data, int width, int height, long timestampNanos) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.timestampNanos = timestampNanos;
+        }
+
+        /**
+         * Returns frame in NV21 format.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getTimestamp() {
+            return timestampNanos;
+        }
+
+        /**
+         * Compresses the frame into JPEG by {@link android.graphics.YuvImage}.
+         *
+         * @param quality   JPEG quality [0..100]
+         * @return  JPEG picture, or NULL if compressing has failed
+         */
+        public byte[] compressToJpeg(int quality) {
+            final YuvImage image = new YuvImage(data, ImageFormat.NV21, width, height, null);
+            final EncodeBufferPool pool = EncodeBufferPool.getDefault();
+            final EncodeBuffer out = pool.obtain(Bitmap.CompressFormat.JPEG, width, height);
+            try {
+                if (!image.compressToJpeg(new Rect(0, 0, width, height), quality, out))
+                    return null;
+
+                pool.record(Bitmap.CompressFormat.JPEG, width, height, out.size());
+                return out.toByteArray();
+            } finally {
+                out.recycle();
+            }
+        }
+    }
+}
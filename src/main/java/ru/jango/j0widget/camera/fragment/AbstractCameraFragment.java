@@ -19,10 +19,14 @@
 
 package ru.jango.j0widget.camera.fragment;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.hardware.Camera;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -30,10 +34,26 @@ import android.view.ViewGroup;
 import android.widget.RelativeLayout;
 
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import ru.jango.j0util.LogUtil;
 import ru.jango.j0util.RotationUtil;
+import ru.jango.j0widget.LatencyHistogram;
+import ru.jango.j0widget.TrimMemoryCallbacks;
+import ru.jango.j0widget.camera.CameraCapabilities;
+import ru.jango.j0widget.camera.AreaPreviewPolicy;
 import ru.jango.j0widget.camera.CameraPreview;
+import ru.jango.j0widget.camera.CaptureLatencyTracker;
+import ru.jango.j0widget.camera.EncodeBufferPool;
+import ru.jango.j0widget.camera.GovernedPreviewPolicy;
+import ru.jango.j0widget.camera.PressureGovernor;
+import ru.jango.j0widget.camera.PreviewFrameDispatcher;
+import ru.jango.j0widget.camera.PreviewPolicy;
+import ru.jango.j0widget.camera.ZslFrameRing;
 
 /**
  * Base fragment for managing {@link ru.jango.j0widget.camera.CameraPreview}. Creates layout, does
@@ -45,25 +65,69 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
     public static final boolean DEFAULT_RESTART_ON_RESUME = true;
     public static final int DEFAULT_TAKE_PICTURE_FREQUENCY = 3000;
     public static final Point DEFAULT_PICTURE_SIZE = new Point(800, 600);
+    public static final int DEFAULT_ZSL_QUALITY = 90;
+    public static final int DEFAULT_CAPTURE_QUEUE_DEPTH = 1;
+    public static final long DEFAULT_CAMERA_RETENTION_PERIOD = 0;
+    public static final long DEFAULT_GOVERNOR_PERIOD = 500;
+    public static final CaptureRequestQueue.Policy DEFAULT_CAPTURE_QUEUE_POLICY = CaptureRequestQueue.Policy.COALESCE;
+
+    private static final long ZSL_THREAD_KEEP_ALIVE = 5000;
 
     protected boolean restartOnResume;
     protected int cameraId;
     protected Camera camera;
     protected CameraPreview preview;
+    protected PreviewFrameDispatcher frameDispatcher;
+    protected CaptureLatencyTracker latencyTracker;
 
     private int takePictureFrequency;
     private long lastPictureTaken;
     private Point picSize;
+    private PreviewPolicy previewPolicy;
+    private CameraPreview.Backend previewBackend;
+
+    private ZslFrameRing zslRing;
+    private int zslQuality;
+    private Handler mainHandler;
+
+    private CaptureRequestQueue captureQueue;
+    private boolean captureInProgress;
+
+    private long cameraRetentionPeriod;
+    private boolean cameraRetained;
+
+    private final LatencyHistogram switchLatency;
+    private long lastSwitchLatency;
+
+    private PressureGovernor governor;
+    private GovernedPreviewPolicy governedPolicy;
+    private PressureGovernor.GovernorListener governorListener;
+
+    /**
+     * TRUE, if the last picture was taken from preview frames (zero shutter lag) and preview is
+     * still running.
+     */
+    protected boolean captureFromPreview;
+    private ThreadPoolExecutor zslExecutor;
 
     protected RelativeLayout root;
 
     public AbstractCameraFragment() {
         cameraId = getBackwardCameraId();
         lastPictureTaken = 0;
+        frameDispatcher = new PreviewFrameDispatcher();
+        latencyTracker = new CaptureLatencyTracker();
 
         restartOnResume = DEFAULT_RESTART_ON_RESUME;
         takePictureFrequency = DEFAULT_TAKE_PICTURE_FREQUENCY;
         picSize = DEFAULT_PICTURE_SIZE;
+        previewBackend = CameraPreview.Backend.SURFACE_VIEW;
+        zslQuality = DEFAULT_ZSL_QUALITY;
+        mainHandler = new Handler();
+        captureQueue = new CaptureRequestQueue(DEFAULT_CAPTURE_QUEUE_DEPTH, DEFAULT_CAPTURE_QUEUE_POLICY);
+        cameraRetentionPeriod = DEFAULT_CAMERA_RETENTION_PERIOD;
+        switchLatency = new LatencyHistogram();
+        lastSwitchLatency = -1;
     }
 
     ///////////////////////////////////////////////////////////////
@@ -72,6 +136,12 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
     //
     ///////////////////////////////////////////////////////////////
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        trimCallbacks.register(getActivity());
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         root = createRelativeLayout();
@@ -90,8 +160,11 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
     }
 
     private CameraPreview createCameraPreview() {
-        final CameraPreview preview = new CameraPreview(getActivity());
+        final CameraPreview preview = new CameraPreview(getActivity(), previewBackend);
         preview.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.FILL_PARENT));
+        preview.setFrameDispatcher(frameDispatcher);
+        if (governedPolicy != null) preview.setPreviewPolicy(governedPolicy);
+        else if (previewPolicy != null) preview.setPreviewPolicy(previewPolicy);
 
         return preview;
     }
@@ -99,13 +172,40 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
     @Override
     public void onResume() {
         super.onResume();
+        startGovernor();
+        if (resumeRetainedCamera()) return;
         if (restartOnResume) restartPreview();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        stopPreview();
+        captureQueue.clear();
+        mainHandler.removeCallbacks(queuedCapture);
+        mainHandler.removeCallbacks(governorTick);
+
+        if (!retainCamera())
+            stopPreview();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        releaseRetainedCamera.run();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        trimCallbacks.unregister();
+        frameDispatcher.release();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (!trimCallbacks.isRegistered())
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
     }
 
     ///////////////////////////////////////////////////////////////
@@ -144,6 +244,114 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
         this.picSize = size;
     }
 
+    public PreviewPolicy getPreviewPolicy() {
+        if (governedPolicy != null) return governedPolicy.getBasePolicy();
+        return preview != null ? preview.getPreviewPolicy() : previewPolicy;
+    }
+
+    /**
+     * Sets strategy of choosing preview size and fps range for {@link CameraPreview}.
+     *
+     * @see ru.jango.j0widget.camera.BandwidthPreviewPolicy
+     */
+    public void setPreviewPolicy(PreviewPolicy previewPolicy) {
+        this.previewPolicy = previewPolicy;
+        if (governor != null) {
+            governedPolicy = new GovernedPreviewPolicy(previewPolicy != null ? previewPolicy : new AreaPreviewPolicy());
+            governedPolicy.setLevel(governor.getLevel());
+        }
+
+        if (preview != null)
+            preview.setPreviewPolicy(governedPolicy != null ? governedPolicy : previewPolicy);
+    }
+
+    public boolean isPressureGovernorEnabled() {
+        return governor != null;
+    }
+
+    /**
+     * Enables {@link ru.jango.j0widget.camera.PressureGovernor}. Every {@link #DEFAULT_GOVERNOR_PERIOD}
+     * milliseconds it's fed with preview frames processing time and picture processing queue
+     * latency; on pressure preview size and fps are lowered by
+     * {@link ru.jango.j0widget.camera.GovernedPreviewPolicy} on top of {@link #getPreviewPolicy()},
+     * and subclasses could lower their own workload in {@link #onPressureLevelChanged(int, int)}.
+     * Disabled by default.
+     */
+    public void setPressureGovernorEnabled(boolean enabled) {
+        if (enabled == (governor != null))
+            return;
+
+        final int oldLevel = governor != null ? governor.getLevel() : 0;
+        mainHandler.removeCallbacks(governorTick);
+        if (enabled) {
+            governor = new PressureGovernor();
+            governor.setGovernorListener(levelListener);
+            governedPolicy = new GovernedPreviewPolicy(previewPolicy != null ? previewPolicy : new AreaPreviewPolicy());
+            if (isResumed()) startGovernor();
+        } else {
+            governor = null;
+            governedPolicy = null;
+        }
+
+        if (preview != null)
+            preview.setPreviewPolicy(governedPolicy != null ? governedPolicy :
+                    previewPolicy != null ? previewPolicy : new AreaPreviewPolicy());
+        if (oldLevel != 0)
+            onPressureLevelChanged(oldLevel, 0);
+    }
+
+    /**
+     * Returns {@link ru.jango.j0widget.camera.PressureGovernor} for tuning thresholds, or NULL if
+     * it's not enabled.
+     *
+     * @see #setPressureGovernorEnabled(boolean)
+     */
+    public PressureGovernor getPressureGovernor() {
+        return governor;
+    }
+
+    public PressureGovernor.GovernorListener getGovernorListener() {
+        return governorListener;
+    }
+
+    /**
+     * Sets listener, that would be notified on main thread about every pressure level change.
+     */
+    public void setGovernorListener(PressureGovernor.GovernorListener listener) {
+        this.governorListener = listener;
+    }
+
+    public CameraPreview.Backend getPreviewBackend() {
+        return previewBackend;
+    }
+
+    /**
+     * Sets the kind of view, that shows preview. Should be called before fragment's view is
+     * created.
+     *
+     * @see ru.jango.j0widget.camera.CameraPreview.Backend
+     */
+    public void setPreviewBackend(CameraPreview.Backend previewBackend) {
+        this.previewBackend = previewBackend;
+    }
+
+    public long getCameraRetentionPeriod() {
+        return cameraRetentionPeriod;
+    }
+
+    /**
+     * Sets time in milliseconds, that {@link android.hardware.Camera} would be kept opened after
+     * {@link #onPause()}. If fragment is resumed during this time (after a notification shade,
+     * a dialog and so on), preview just continues without reopening the camera. Camera is released
+     * when the period expires or in {@link #onStop()}. Other applications could not use the camera
+     * meanwhile.
+     * <p/>
+     * By default 0 - camera is released right in {@link #onPause()}.
+     */
+    public void setCameraRetentionPeriod(long cameraRetentionPeriod) {
+        this.cameraRetentionPeriod = cameraRetentionPeriod;
+    }
+
     public boolean shouldRestartOnResume() {
         return restartOnResume;
     }
@@ -152,6 +360,109 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
         this.restartOnResume = restartOnResume;
     }
 
+    /**
+     * Returns queue of capture requests, that came while the camera could not take a picture. It
+     * could be used for tuning (max depth, policy) and for reading queue depth and wait times.
+     *
+     * @see #takePicture()
+     */
+    public CaptureRequestQueue getCaptureQueue() {
+        return captureQueue;
+    }
+
+    /**
+     * Returns tracker of capture latencies (tap, shutter, preview restart, processing result).
+     * Use {@link ru.jango.j0widget.camera.CaptureLatencyTracker#getHistogram(ru.jango.j0widget.camera.CaptureLatencyTracker.Phase)}
+     * or {@link ru.jango.j0widget.camera.CaptureLatencyTracker#dump()} to read the numbers.
+     */
+    public CaptureLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Returns ID of the camera, that is used (or would be used on next start).
+     */
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    /**
+     * Returns duration of the last {@link #switchCamera(int)} in microseconds, or -1 if cameras
+     * were not switched yet.
+     */
+    public long getLastSwitchLatency() {
+        return lastSwitchLatency;
+    }
+
+    /**
+     * Returns copy of the histogram of all camera switches durations in microseconds.
+     */
+    public LatencyHistogram getSwitchLatencyHistogram() {
+        return switchLatency.snapshot();
+    }
+
+    /**
+     * Returns {@link ru.jango.j0widget.camera.PreviewFrameDispatcher}, that could be used for
+     * tuning preview frames delivery (target fps, buffers count) and reading it's counters.
+     */
+    public PreviewFrameDispatcher getFrameDispatcher() {
+        return frameDispatcher;
+    }
+
+    /**
+     * Adds consumer of the preview frames. Frames are delivered in NV21 format on a worker thread.
+     *
+     * @see ru.jango.j0widget.camera.PreviewFrameDispatcher
+     */
+    public void addFrameConsumer(PreviewFrameDispatcher.FrameConsumer consumer) {
+        frameDispatcher.addFrameConsumer(consumer);
+    }
+
+    public void removeFrameConsumer(PreviewFrameDispatcher.FrameConsumer consumer) {
+        frameDispatcher.removeFrameConsumer(consumer);
+    }
+
+    public boolean isZeroShutterLag() {
+        return zslRing != null;
+    }
+
+    /**
+     * Turns on zero shutter lag mode. In this mode fragment keeps the most recent preview frames
+     * and {@link #takePicture()} just compresses one of them into JPEG, instead of asking camera
+     * for a real capture (with shutter delay, autofocus and preview restart). Picture would have
+     * preview resolution, so the mode is useful when full resolution is not required. If there is
+     * no fresh frame, usual capture is made.
+     *
+     * @see ru.jango.j0widget.camera.ZslFrameRing
+     */
+    public void setZeroShutterLag(boolean enabled) {
+        if (enabled && zslRing == null) {
+            zslRing = new ZslFrameRing();
+            frameDispatcher.addFrameConsumer(zslRing);
+        } else if (!enabled && zslRing != null) {
+            frameDispatcher.removeFrameConsumer(zslRing);
+            zslRing = null;
+        }
+    }
+
+    /**
+     * Returns frames ring of zero shutter lag mode (for tuning), or NULL if the mode is off.
+     */
+    public ZslFrameRing getZslFrameRing() {
+        return zslRing;
+    }
+
+    public int getZslQuality() {
+        return zslQuality;
+    }
+
+    /**
+     * Sets JPEG quality for pictures, taken in zero shutter lag mode.
+     */
+    public void setZslQuality(int zslQuality) {
+        this.zslQuality = zslQuality;
+    }
+
     ///////////////////////////////////////////////////////////////
     //
     //						Camera staff
@@ -184,8 +495,8 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
     protected void openCamera() {
         camera = Camera.open(cameraId);
 
-        final List<Camera.Size> sizes = camera.getParameters().getSupportedPictureSizes();
-        final Camera.Size optimal = getOptimalSize(sizes);
+        final CameraCapabilities caps = CameraCapabilities.obtain(camera, cameraId);
+        final Camera.Size optimal = getOptimalSize(caps.getPictureSizes(camera));
         final Camera.Parameters params = camera.getParameters();
 
         params.setPictureSize(optimal.width, optimal.height);
@@ -196,6 +507,10 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
      * Returns angle in degrees that taken picture should be rotated by.
      */
     protected int getRotation() {
+        final CameraCapabilities caps = CameraCapabilities.get(cameraId);
+        if (caps != null)
+            return caps.getPictureRotation(RotationUtil.getDisplayRotation(getActivity()));
+
         final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
         Camera.getCameraInfo(cameraId, cameraInfo);
 
@@ -225,22 +540,77 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
         return 0;
     }
 
+    /**
+     * Stops preview, but keeps the camera opened for {@link #getCameraRetentionPeriod()}.
+     *
+     * @return TRUE, if camera was retained
+     */
+    private boolean retainCamera() {
+        if (cameraRetentionPeriod <= 0 || camera == null || captureInProgress)
+            return false;
+
+        if (zslRing != null) zslRing.clear();
+        preview.stopPreview();
+
+        cameraRetained = true;
+        mainHandler.removeCallbacks(releaseRetainedCamera);
+        mainHandler.postDelayed(releaseRetainedCamera, cameraRetentionPeriod);
+        return true;
+    }
+
+    /**
+     * Starts preview from the retained camera, if there is one.
+     *
+     * @return TRUE, if camera was retained and preview was resumed
+     */
+    private boolean resumeRetainedCamera() {
+        mainHandler.removeCallbacks(releaseRetainedCamera);
+        if (!cameraRetained)
+            return false;
+
+        cameraRetained = false;
+        if (camera == null)
+            return false;
+
+        preview.startPreview();
+        captureInProgress = false;
+        scheduleQueuedCapture();
+        return true;
+    }
+
+    private final Runnable releaseRetainedCamera = new Runnable() {
+        @Override
+        public void run() {
+            mainHandler.removeCallbacks(releaseRetainedCamera);
+            if (!cameraRetained)
+                return;
+
+            cameraRetained = false;
+            stopPreview();
+        }
+    };
+
     /**
      * Opens a {@link android.hardware.Camera} and passes it into {@link CameraPreview}
      */
     public void startPreview() {
         try {
             openCamera();
-            preview.setCamera(camera);
+            preview.setCamera(camera, cameraId);
+            preview.precomputePreviewConfigs();
         } catch (Exception e) {
             LogUtil.e(SimpleCameraFragment.class, "Picture taking failed: " + e);
         }
+
+        captureInProgress = false;
+        scheduleQueuedCapture();
     }
 
     /**
      * Stops preview and releases {@link android.hardware.Camera}.
      */
     public void stopPreview() {
+        if (zslRing != null) zslRing.clear();
         if (camera == null) return;
 
         try {
@@ -266,39 +636,380 @@ public abstract class AbstractCameraFragment extends Fragment implements Camera.
 
         try {
             openCamera();
-            preview.switchCamera(camera);
+            preview.switchCamera(camera, cameraId);
+            preview.precomputePreviewConfigs();
         } catch (Exception e) {
             LogUtil.e(SimpleCameraFragment.class, "Picture taking failed: " + e);
         }
+
+        latencyTracker.onPreviewRestarted();
+        captureInProgress = false;
+        scheduleQueuedCapture();
+    }
+
+    /**
+     * Switches between back and front cameras.
+     *
+     * @return TRUE, if cameras were switched
+     * @see #switchCamera(int)
+     */
+    public boolean switchCamera() {
+        final Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+
+        final int newCameraId = CameraCapabilities.findCameraId(
+                info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT ?
+                        Camera.CameraInfo.CAMERA_FACING_BACK : Camera.CameraInfo.CAMERA_FACING_FRONT);
+        return newCameraId != -1 && switchCamera(newCameraId);
+    }
+
+    /**
+     * Switches preview onto another camera. Preview surface is kept alive, camera capabilities
+     * and preview configs are taken from caches (they are filled, when a camera is opened for the
+     * first time), so mostly only opening of the new camera is paid for. Duration of the switch
+     * is available through {@link #getLastSwitchLatency()} and {@link #getSwitchLatencyHistogram()}.
+     * <p/>
+     * Queued capture requests are dropped. Switch is refused, while a picture is being taken or
+     * the fragment is paused.
+     *
+     * @param cameraId  ID of the new camera
+     * @return TRUE, if cameras were switched
+     */
+    public boolean switchCamera(int cameraId) {
+        if (cameraId < 0 || cameraId >= Camera.getNumberOfCameras() || captureInProgress || cameraRetained
+                || !isResumed())
+            return false;
+        if (cameraId == this.cameraId && camera != null)
+            return true;
+
+        final long start = System.nanoTime();
+        captureQueue.clear();
+        mainHandler.removeCallbacks(queuedCapture);
+        if (zslRing != null) zslRing.clear();
+
+        final int previousId = this.cameraId;
+        final boolean hadCamera = camera != null;
+        try {
+            releaseSwitchedCamera();
+            this.cameraId = cameraId;
+            openCamera();
+            preview.switchCamera(camera, cameraId);
+        } catch (Exception e) {
+            LogUtil.e(AbstractCameraFragment.class, "Switching camera failed: " + e);
+            restoreCamera(previousId, hadCamera);
+            return false;
+        }
+
+        lastSwitchLatency = (System.nanoTime() - start) / 1000L;
+        switchLatency.record(lastSwitchLatency);
+        LogUtil.d(AbstractCameraFragment.class, "Camera switched to " + cameraId + " in " + lastSwitchLatency + "us");
+
+        preview.precomputePreviewConfigs();
+        return true;
+    }
+
+    private void releaseSwitchedCamera() {
+        if (camera == null)
+            return;
+
+        preview.stopPreviewKeepingSurface();
+        preview.setCamera(null);
+        camera.release();
+        camera = null;
+    }
+
+    /**
+     * Returns the camera, that was used before failed switching, so the fragment stays working.
+     */
+    private void restoreCamera(int previousId, boolean reopen) {
+        this.cameraId = previousId;
+        try {
+            releaseSwitchedCamera();
+            if (!reopen)
+                return;
+
+            openCamera();
+            preview.switchCamera(camera, previousId);
+        } catch (Exception e) {
+            LogUtil.e(AbstractCameraFragment.class, "Restoring camera " + previousId + " failed: " + e);
+            preview.setCamera(null);
+            if (camera != null) {
+                camera.release();
+                camera = null;
+            }
+        }
     }
 
     /**
      * Checks if photo can be taken at the moment. It could not, because:
      * <ul>
      * <li>cooldown has not passed yet ({@link #setTakePictureFrequency(int)})</li>
+     * <li>previous picture is still being taken</li>
+     * <li>camera is not opened</li>
      * </ul>
      */
     public boolean canTakePicture() {
-        return cooldownOk();
+        return cooldownOk() && !captureInProgress && camera != null;
     }
 
     /**
-     * Starts taking photo process. It could fail if {@link #canTakePicture()} returns FALSE.
+     * Starts taking photo process. If {@link #canTakePicture()} returns FALSE, request is put into
+     * {@link #getCaptureQueue()} and the picture would be taken as soon as the camera is ready.
+     * When the queue is full, request is coalesced or rejected according to it's policy.
      *
-     * @return TRUE, if taking photo process have actually began
+     * @return TRUE, if taking photo process have actually began, or the request was queued
      */
     public boolean takePicture() {
-        if (!canTakePicture())
-            return false;
+        if (canTakePicture() && captureQueue.isEmpty())
+            return capture(System.nanoTime());
 
+        final boolean accepted = captureQueue.offer(SystemClock.elapsedRealtime());
+        if (accepted) scheduleQueuedCapture();
+
+        return accepted;
+    }
+
+    /**
+     * Actually takes a picture without any checks.
+     *
+     * @param tapNanos  moment of the request by {@link System#nanoTime()}
+     * @return TRUE, if taking photo process have actually began
+     */
+    protected boolean capture(long tapNanos) {
         lastPictureTaken = System.currentTimeMillis();
+        captureInProgress = true;
+        latencyTracker.onCaptureStarted(tapNanos);
+        if (takePreviewPicture())
+            return true;
+
+        return takeCameraPicture();
+    }
+
+    private boolean takeCameraPicture() {
         try {
+            captureFromPreview = false;
             camera.takePicture(null, null, this);
             return true;
         } catch (Exception e) {
             LogUtil.e(SimpleCameraFragment.class, "Picture taking failed: " + e);
         }
 
+        captureInProgress = false;
         return false;
     }
+
+    /**
+     * Plans serving of the next queued request at the moment, when cooldown passes. If the
+     * camera is busy, nothing is planned - method would be called again, when camera is re-armed.
+     */
+    private void scheduleQueuedCapture() {
+        mainHandler.removeCallbacks(queuedCapture);
+        if (captureQueue.isEmpty() || captureInProgress || camera == null)
+            return;
+
+        final long delay = lastPictureTaken + takePictureFrequency + 1 - System.currentTimeMillis();
+        mainHandler.postDelayed(queuedCapture, Math.max(0, delay));
+    }
+
+    private final Runnable queuedCapture = new Runnable() {
+        @Override
+        public void run() {
+            if (!canTakePicture()) {
+                scheduleQueuedCapture();
+                return;
+            }
+
+            if (captureQueue.poll(SystemClock.elapsedRealtime()))
+                capture(System.nanoTime() - captureQueue.getLastWaitTime() * 1000000L);
+        }
+    };
+
+    /**
+     * Zero shutter lag capture: copies a frame from {@link ru.jango.j0widget.camera.ZslFrameRing},
+     * compresses it on it's own single thread and passes it into
+     * {@link #onPictureTaken(byte[], android.hardware.Camera)} on main thread, as if the camera
+     * has taken it. If compressing fails, usual capture is done.
+     *
+     * @return TRUE, if the picture is being taken from preview
+     */
+    protected boolean takePreviewPicture() {
+        if (zslRing == null || camera == null)
+            return false;
+
+        final ZslFrameRing.Frame frame = zslRing.copyFrame(System.nanoTime());
+        if (frame == null)
+            return false;
+
+        captureFromPreview = true;
+        final Camera currentCamera = camera;
+        final int quality = zslQuality;
+        getZslExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] jpeg = frame.compressToJpeg(quality);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (jpeg != null) onPictureTaken(jpeg, currentCamera);
+                        else onPreviewPictureFailed(currentCamera);
+                    }
+                });
+            }
+        });
+
+        return true;
+    }
+
+    private void onPreviewPictureFailed(Camera previewCamera) {
+        LogUtil.e(AbstractCameraFragment.class, "Compressing preview frame failed");
+        if (camera != null && camera == previewCamera && takeCameraPicture())
+            return;
+
+        captureInProgress = false;
+        scheduleQueuedCapture();
+    }
+
+    /**
+     * Zero shutter lag frames are compressed on a dedicated thread, so they don't wait behind
+     * full-size pictures, that subclasses process in background.
+     */
+    private Executor getZslExecutor() {
+        if (zslExecutor == null) {
+            zslExecutor = new ThreadPoolExecutor(1, 1, ZSL_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ZslThreadFactory());
+            zslExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return zslExecutor;
+    }
+
+    /**
+     * Should be called from {@link #onPictureTaken(byte[], android.hardware.Camera)}, when the
+     * picture data was taken away. After usual capture camera stops preview, so it's restarted
+     * here; after zero shutter lag capture preview is still running and nothing is done.
+     */
+    protected void rearmAfterCapture() {
+        if (!captureFromPreview) {
+            restartPreview();
+            return;
+        }
+
+        latencyTracker.onPreviewRestarted();
+        captureInProgress = false;
+        scheduleQueuedCapture();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Governor staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    private void startGovernor() {
+        mainHandler.removeCallbacks(governorTick);
+        if (governor != null)
+            mainHandler.postDelayed(governorTick, DEFAULT_GOVERNOR_PERIOD);
+    }
+
+    private final Runnable governorTick = new Runnable() {
+        @Override
+        public void run() {
+            if (governor == null)
+                return;
+
+            // measurements during capturing are not representative, and preview should not be
+            // reconfigured in the middle of it
+            if (camera != null && !captureInProgress)
+                governor.update(frameDispatcher.getAverageProcessingTime(), getProcessingQueueLatency());
+
+            mainHandler.postDelayed(governorTick, DEFAULT_GOVERNOR_PERIOD);
+        }
+    };
+
+    private final PressureGovernor.GovernorListener levelListener = new PressureGovernor.GovernorListener() {
+        @Override
+        public void onLevelChanged(int oldLevel, int newLevel, long frameTimeMicros, long queueLatencyMicros) {
+            LogUtil.d(AbstractCameraFragment.class, "Pressure level " + oldLevel + " -> " + newLevel +
+                    ": frame time " + frameTimeMicros + "us, queue latency " + queueLatencyMicros + "us");
+
+            onPressureLevelChanged(oldLevel, newLevel);
+            if (governorListener != null)
+                governorListener.onLevelChanged(oldLevel, newLevel, frameTimeMicros, queueLatencyMicros);
+        }
+    };
+
+    /**
+     * Returns how long in microseconds the oldest picture is waiting for processing. Fragment
+     * doesn't process pictures itself, so by default it's 0.
+     */
+    protected long getProcessingQueueLatency() {
+        return 0;
+    }
+
+    /**
+     * Is called on main thread, when pressure level changes. By default preview is reconfigured
+     * by {@link ru.jango.j0widget.camera.GovernedPreviewPolicy}; subclasses could lower their own
+     * workload.
+     *
+     * @see #setPressureGovernorEnabled(boolean)
+     */
+    protected void onPressureLevelChanged(int oldLevel, int newLevel) {
+        if (governedPolicy != null)
+            governedPolicy.setLevel(newLevel);
+        if (preview != null && camera != null && !cameraRetained)
+            preview.reconfigurePreview();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Memory staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    private final TrimMemoryCallbacks trimCallbacks = new TrimMemoryCallbacks() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+    };
+
+    /**
+     * Is called on main thread, when the system asks to free memory (since API 14; on older
+     * versions only {@link #onLowMemory()} works).
+     * <ul>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} and higher -
+     * pooled encoding buffers are dropped</li>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL} and higher -
+     * zero shutter lag frames are dropped and their slots are freed</li>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} and higher -
+     * retained camera is released right away</li>
+     * </ul>
+     * Everything is restored lazily, when it's needed again.
+     *
+     * @param level one of {@link android.content.ComponentCallbacks2} TRIM_MEMORY_* constants
+     */
+    protected void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            EncodeBufferPool.getDefault().clear();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL && zslRing != null)
+            zslRing.trim();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && !isResumed())
+            releaseRetainedCamera.run();
+
+        LogUtil.d(AbstractCameraFragment.class, "Memory trimmed, level " + level);
+    }
+
+    private static class ZslThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                    r.run();
+                }
+            }, ZslFrameRing.class.getSimpleName());
+        }
+    }
 }
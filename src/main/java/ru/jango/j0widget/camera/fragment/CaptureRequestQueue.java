@@ -0,0 +1,201 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.camera.fragment;
+
+/**
+ * Bounded queue of capture requests (taps), that came while the camera was not ready to take a
+ * picture. Used by {@link ru.jango.j0widget.camera.fragment.AbstractCameraFragment}: queued
+ * requests are served as soon as the camera is re-armed.
+ * <p/>
+ * Queue stores only the moments of requests, so it doesn't allocate anything after creation.
+ * All the methods should be called on the main thread.
+ */
+public class CaptureRequestQueue {
+
+    /**
+     * What to do with a new request, when the queue is full.
+     */
+    public enum Policy {
+        /**
+         * New request is merged with the last queued one - no extra picture would be taken, but
+         * request is treated as accepted.
+         */
+        COALESCE,
+
+        /**
+         * New request is rejected.
+         */
+        REJECT
+    }
+
+    private long[] requests;
+    private int head;
+    private int size;
+    private Policy policy;
+
+    private long lastWaitTime;
+    private long maxWaitTime;
+    private long totalWaitTime;
+    private long servedCount;
+    private long coalescedCount;
+    private long rejectedCount;
+
+    public CaptureRequestQueue(int maxDepth, Policy policy) {
+        this.requests = new long[Math.max(0, maxDepth)];
+        this.policy = policy;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public int getMaxDepth() {
+        return requests.length;
+    }
+
+    /**
+     * Sets max number of queued requests. 0 means no queue - requests, that could not be served
+     * immediately, are handled only by {@link #getPolicy()}. Already queued requests are dropped.
+     */
+    public void setMaxDepth(int maxDepth) {
+        requests = new long[Math.max(0, maxDepth)];
+        head = 0;
+        size = 0;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns number of requests, that are waiting at the moment.
+     */
+    public int getDepth() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns time in milliseconds, that the last served request has waited in the queue.
+     */
+    public long getLastWaitTime() {
+        return lastWaitTime;
+    }
+
+    /**
+     * Returns max time in milliseconds, that a served request has waited in the queue.
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Returns average time in milliseconds, that served requests have waited in the queue.
+     */
+    public long getAverageWaitTime() {
+        return servedCount == 0 ? 0 : totalWaitTime / servedCount;
+    }
+
+    public long getServedCount() {
+        return servedCount;
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public void resetCounters() {
+        lastWaitTime = 0;
+        maxWaitTime = 0;
+        totalWaitTime = 0;
+        servedCount = 0;
+        coalescedCount = 0;
+        rejectedCount = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Queue staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Puts request into the queue.
+     *
+     * @param now   request moment in milliseconds
+     * @return  TRUE, if request was accepted (queued or coalesced)
+     */
+    public boolean offer(long now) {
+        if (size < requests.length) {
+            requests[(head + size) % requests.length] = now;
+            size++;
+            return true;
+        }
+
+        if (policy == Policy.COALESCE && size > 0) {
+            coalescedCount++;
+            return true;
+        }
+
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Takes the oldest request from the queue and updates wait time statistics.
+     *
+     * @param now   serving moment in milliseconds
+     * @return  TRUE, if there was a request
+     */
+    public boolean poll(long now) {
+        if (size == 0)
+            return false;
+
+        lastWaitTime = now - requests[head];
+        maxWaitTime = Math.max(maxWaitTime, lastWaitTime);
+        totalWaitTime += lastWaitTime;
+        servedCount++;
+
+        head = (head + 1) % requests.length;
+        size--;
+        return true;
+    }
+
+    /**
+     * Drops all waiting requests.
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
@@ -20,13 +20,21 @@
 package ru.jango.j0widget.camera.fragment;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Point;
 import android.hardware.Camera;
+import android.os.Process;
 
 import java.net.URI;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import ru.jango.j0widget.camera.BitmapProcessor;
 import ru.jango.j0widget.camera.BitmapProcessor.BitmapProcessorListener;
+import ru.jango.j0widget.camera.DuplicateFilter;
+import ru.jango.j0widget.camera.DuplicatePictureException;
 
 /**
  * Special camera fragment, that also applies some asynchronous checks and changes after taking
@@ -36,12 +44,27 @@ import ru.jango.j0widget.camera.BitmapProcessor.BitmapProcessorListener;
 public class SimpleCameraFragment extends AbstractCameraFragment implements BitmapProcessorListener {
 
     public static final int DEFAULT_MAX_CACHE_SIZE = 5;
+    public static final int DEFAULT_PROCESSING_PARALLELISM = 2;
+
+    private static final long PROCESSING_THREAD_KEEP_ALIVE = 5000;
 
     protected CameraFragmentListener cameraListener;
     private Point thumbnailSize;
+    private DuplicateFilter duplicateFilter;
+    private CompressFormat pictureFormat;
+    private int maxPictureByteSize;
+
+    private int processingParallelism;
+    private final ThreadPoolExecutor processingExecutor;
 
     public SimpleCameraFragment() {
         thumbnailSize = null;
+        processingParallelism = DEFAULT_PROCESSING_PARALLELISM;
+
+        processingExecutor = new ThreadPoolExecutor(processingParallelism, processingParallelism,
+                PROCESSING_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ProcessingThreadFactory());
+        processingExecutor.allowCoreThreadTimeOut(true);
     }
 
     ///////////////////////////////////////////////////////////////
@@ -76,6 +99,62 @@ public class SimpleCameraFragment extends AbstractCameraFragment implements Bitm
         this.thumbnailSize = size;
     }
 
+    public CompressFormat getPictureFormat() {
+        return pictureFormat;
+    }
+
+    /**
+     * Sets format of processed pictures. By default (NULL) it's chosen by the extension of the
+     * {@link java.net.URI}, returned from {@link SimpleCameraFragment.CameraFragmentListener#onPictureTaken()}.
+     *
+     * @see ru.jango.j0widget.camera.BitmapProcessor#setCompressFormat(android.graphics.Bitmap.CompressFormat)
+     */
+    public void setPictureFormat(CompressFormat pictureFormat) {
+        this.pictureFormat = pictureFormat;
+    }
+
+    public int getMaxPictureByteSize() {
+        return maxPictureByteSize;
+    }
+
+    /**
+     * Sets max size of processed pictures in bytes; 0 (default) means no limit.
+     *
+     * @see ru.jango.j0widget.camera.BitmapProcessor#setMaxByteSize(int)
+     */
+    public void setMaxPictureByteSize(int maxPictureByteSize) {
+        this.maxPictureByteSize = maxPictureByteSize;
+    }
+
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * Sets filter of nearly identical pictures. Duplicates of the previous accepted picture are
+     * not processed; {@link ru.jango.j0widget.camera.DuplicatePictureException} is passed into
+     * {@link SimpleCameraFragment.CameraFragmentListener#onProcessingFailed(java.net.URI, Exception)}
+     * instead. By default there is no filter.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    public int getProcessingParallelism() {
+        return processingParallelism;
+    }
+
+    /**
+     * Sets max number of pictures, that are processed at the same time; others wait in a queue.
+     * Under pressure (see {@link #setPressureGovernorEnabled(boolean)}) actual parallelism could
+     * be lower.
+     */
+    public void setProcessingParallelism(int processingParallelism) {
+        this.processingParallelism = Math.max(1, processingParallelism);
+        applyProcessingParallelism(governedParallelism(getPressureGovernor() != null ?
+                getPressureGovernor().getLevel() : 0));
+    }
+
     ///////////////////////////////////////////////////////////////
     //
     //						Camera staff
@@ -86,34 +165,111 @@ public class SimpleCameraFragment extends AbstractCameraFragment implements Bitm
         if (dataID == null || data == null)
             return;
 
+        latencyTracker.onProcessingStarted(dataID);
         final BitmapProcessor bmpProc = new BitmapProcessor(data, dataID, this);
         bmpProc.setPictureRotation(getRotation());
         bmpProc.setPictureSize(getPictureSize());
         bmpProc.setThumbnailSize(thumbnailSize);
+        bmpProc.setDuplicateFilter(duplicateFilter);
+        bmpProc.setCompressFormat(pictureFormat);
+        bmpProc.setMaxByteSize(maxPictureByteSize);
 
-        new Thread(bmpProc).start();
+        processingExecutor.execute(new QueuedProcessor(bmpProc));
     }
 
     @Override
     public void onPictureTaken(byte[] data, final Camera camera) {
-        if (cameraListener != null)
-            processBitmap(cameraListener.onPictureTaken(), data);
+        final URI dataID = cameraListener != null ? cameraListener.onPictureTaken() : null;
+        latencyTracker.onPictureTaken(dataID);
+        processBitmap(dataID, data);
 
-        restartPreview();
+        rearmAfterCapture();
     }
 
     @Override
     public void onProcessingFinished(URI dataID, byte[] data, Bitmap thumbnail) {
+        latencyTracker.onProcessingFinished(dataID);
         if (cameraListener != null)
             cameraListener.onProcessingFinished(dataID, data, thumbnail);
     }
 
     @Override
     public void onProcessingFailed(URI dataID, Exception e) {
+        if (e instanceof DuplicatePictureException) latencyTracker.onProcessingSkipped(dataID);
+        else latencyTracker.onProcessingFailed(dataID);
         if (cameraListener != null)
             cameraListener.onProcessingFailed(dataID, e);
     }
 
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Processing pressure staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    @Override
+    protected long getProcessingQueueLatency() {
+        final Runnable oldest = processingExecutor.getQueue().peek();
+        if (!(oldest instanceof QueuedProcessor))
+            return 0;
+
+        return (System.nanoTime() - ((QueuedProcessor) oldest).queuedNanos) / 1000L;
+    }
+
+    @Override
+    protected void onPressureLevelChanged(int oldLevel, int newLevel) {
+        super.onPressureLevelChanged(oldLevel, newLevel);
+        applyProcessingParallelism(governedParallelism(newLevel));
+    }
+
+    /**
+     * Every pressure level halves processing parallelism, but at least one picture is processed.
+     */
+    private int governedParallelism(int level) {
+        return Math.max(1, processingParallelism >> level);
+    }
+
+    private void applyProcessingParallelism(int parallelism) {
+        // core size could not exceed max size, so the order matters
+        if (parallelism > processingExecutor.getMaximumPoolSize()) {
+            processingExecutor.setMaximumPoolSize(parallelism);
+            processingExecutor.setCorePoolSize(parallelism);
+        } else {
+            processingExecutor.setCorePoolSize(parallelism);
+            processingExecutor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    private static class QueuedProcessor implements Runnable {
+
+        private final BitmapProcessor processor;
+        private final long queuedNanos;
+
+        public QueuedProcessor(BitmapProcessor processor) {
+            this.processor = processor;
+            this.queuedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            processor.run();
+        }
+    }
+
+    private static class ProcessingThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, BitmapProcessor.class.getSimpleName());
+        }
+    }
+
     public interface CameraFragmentListener {
 
         /**
@@ -139,7 +295,8 @@ public class SimpleCameraFragment extends AbstractCameraFragment implements Bitm
         public void onProcessingFinished(URI dataID, byte[] data, Bitmap thumbnail);
 
         /**
-         * Called when processing was stopped due to some error.
+         * Called when processing was stopped due to some error, or when the picture was skipped
+         * as a duplicate (see {@link SimpleCameraFragment#setDuplicateFilter(ru.jango.j0widget.camera.DuplicateFilter)}).
          *
          * @param dataID    {@link java.net.URI} aka photo ID; this object was previously returned
          *                   from {@link #onPictureTaken()}
@@ -0,0 +1,338 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import ru.jango.j0widget.LatencyHistogram;
+
+/**
+ * Collects frame timings of {@link ru.jango.j0widget.imagebrowser.ImageBrowserView}: how long
+ * {@link android.view.View#onDraw(android.graphics.Canvas)} takes, intervals between frames
+ * of fling and zoom animations, and latency from input to the frame, that shows it. All the
+ * values are aggregated in {@link ru.jango.j0widget.LatencyHistogram}s in microseconds.
+ * <p/>
+ * Besides the total histograms, every gesture (from the first input till the view becomes
+ * idle) is summarized separately into {@link GestureFrameStats} and passed into
+ * {@link FrameStatsListener}. Interval is counted as dropped frames, if it's longer, than
+ * {@link #getFramePeriod()}.
+ * <p/>
+ * Tracker is fed by the view on main thread; recording doesn't allocate anything.
+ */
+public class FrameTimingTracker {
+
+    /**
+     * Frame period of 60 fps display in microseconds.
+     */
+    public static final long DEFAULT_FRAME_PERIOD = 16667;
+
+    public enum Metric {
+        /**
+         * Duration of onDraw.
+         */
+        DRAW,
+
+        /**
+         * Interval between starts of two consecutive frames of a fling or zoom animation.
+         * Frames, that are driven by touch events, are not counted: their intervals depend on
+         * the user.
+         */
+        FRAME_INTERVAL,
+
+        /**
+         * From an input event (scroll, scale, fling or double tap) till the end of the frame,
+         * that shows it.
+         */
+        INPUT_TO_FRAME,
+
+        /**
+         * From the first input event of a gesture till the end of it's first frame.
+         */
+        GESTURE_TO_FIRST_FRAME
+    }
+
+    private final LatencyHistogram[] histograms;
+    private final LatencyHistogram gestureDraw;
+    private final LatencyHistogram gestureInterval;
+    private long framePeriod;
+    private FrameStatsListener listener;
+
+    private boolean inGesture;
+    private long gestureStartNanos;
+    private long gestureFirstFrame;
+    private long gestureFrames;
+    private long gestureDropped;
+    private long inputNanos;
+    private long lastFrameNanos;
+
+    private long frameCount;
+    private long droppedCount;
+    private long gestureCount;
+
+    public FrameTimingTracker() {
+        histograms = new LatencyHistogram[Metric.values().length];
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+
+        gestureDraw = new LatencyHistogram();
+        gestureInterval = new LatencyHistogram();
+        framePeriod = DEFAULT_FRAME_PERIOD;
+        inputNanos = -1;
+        lastFrameNanos = -1;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns expected interval between frames in microseconds.
+     */
+    public long getFramePeriod() {
+        return framePeriod;
+    }
+
+    /**
+     * Sets expected interval between frames in microseconds; for example, according to
+     * {@link android.view.Display#getRefreshRate()}.
+     */
+    public void setFramePeriod(long framePeriod) {
+        this.framePeriod = Math.max(1, framePeriod);
+    }
+
+    public FrameStatsListener getFrameStatsListener() {
+        return listener;
+    }
+
+    public void setFrameStatsListener(FrameStatsListener listener) {
+        this.listener = listener;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Frame events
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * An input event has changed the image position; it's shown by the next frame. The first
+     * input starts a gesture.
+     */
+    public void onInput(long nanos) {
+        if (!inGesture) {
+            inGesture = true;
+            gestureStartNanos = nanos;
+            gestureFirstFrame = -1;
+            gestureFrames = 0;
+            gestureDropped = 0;
+            gestureDraw.reset();
+            gestureInterval.reset();
+            lastFrameNanos = -1;
+        }
+
+        if (inputNanos == -1)
+            inputNanos = nanos;
+    }
+
+    /**
+     * A frame was drawn.
+     *
+     * @param startNanos    start of onDraw
+     * @param endNanos      end of onDraw
+     * @param animation     TRUE, if the frame was requested by a running animation
+     */
+    public void onFrame(long startNanos, long endNanos, boolean animation) {
+        final long draw = (endNanos - startNanos) / 1000L;
+        histograms[Metric.DRAW.ordinal()].record(draw);
+        frameCount++;
+
+        if (!inGesture)
+            return;
+
+        gestureDraw.record(draw);
+        gestureFrames++;
+
+        if (inputNanos != -1) {
+            final long latency = (endNanos - inputNanos) / 1000L;
+            histograms[Metric.INPUT_TO_FRAME.ordinal()].record(latency);
+            if (gestureFirstFrame == -1) {
+                gestureFirstFrame = latency;
+                histograms[Metric.GESTURE_TO_FIRST_FRAME.ordinal()].record(latency);
+            }
+
+            inputNanos = -1;
+        }
+
+        if (animation && lastFrameNanos != -1) {
+            final long interval = (startNanos - lastFrameNanos) / 1000L;
+            histograms[Metric.FRAME_INTERVAL.ordinal()].record(interval);
+            gestureInterval.record(interval);
+
+            // interval of 2.4 periods means, that 1 frame was missed
+            final long dropped = Math.max(0, (interval + framePeriod / 2) / framePeriod - 1);
+            gestureDropped += dropped;
+            droppedCount += dropped;
+        }
+
+        lastFrameNanos = startNanos;
+    }
+
+    /**
+     * View has become idle and the last frame of the gesture is drawn: the gesture (if any) is
+     * finished and it's summary is passed into {@link FrameStatsListener}.
+     */
+    public void onIdle(long nanos) {
+        if (!inGesture)
+            return;
+
+        inGesture = false;
+        inputNanos = -1;
+        lastFrameNanos = -1;
+        gestureCount++;
+
+        if (listener != null)
+            listener.onGestureFinished(new GestureFrameStats(gestureDraw.snapshot(), gestureInterval.snapshot(),
+                    gestureFirstFrame, gestureFrames, gestureDropped,
+                    (nanos - gestureStartNanos) / 1000L));
+    }
+
+    public boolean isInGesture() {
+        return inGesture;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Snapshots
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns a copy of the histogram of the specified metric; values are in microseconds.
+     */
+    public LatencyHistogram getHistogram(Metric metric) {
+        return histograms[metric.ordinal()].snapshot();
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedCount;
+    }
+
+    public long getGestureCount() {
+        return gestureCount;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+
+        frameCount = 0;
+        droppedCount = 0;
+        gestureCount = 0;
+    }
+
+    /**
+     * Returns multi-line summary of all the metrics, suitable for logging.
+     */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        for (Metric metric : Metric.values())
+            sb.append(metric).append(": ").append(getHistogram(metric).dump("us")).append('\n');
+
+        sb.append("FRAMES: ").append(frameCount)
+                .append(" DROPPED: ").append(droppedCount)
+                .append(" GESTURES: ").append(gestureCount);
+        return sb.toString();
+    }
+
+    /**
+     * Frame timings of a single gesture; values are in microseconds.
+     */
+    public static class GestureFrameStats {
+
+        private final LatencyHistogram draw;
+        private final LatencyHistogram interval;
+        private final long firstFrameLatency;
+        private final long frames;
+        private final long droppedFrames;
+        private final long duration;
+
+        public GestureFrameStats(LatencyHistogram draw, LatencyHistogram interval,
+                                 long firstFrameLatency, long frames, long droppedFrames, long duration) {
+            this.draw = draw;
+            this.interval = interval;
+            this.firstFrameLatency = firstFrameLatency;
+            this.frames = frames;
+            this.droppedFrames = droppedFrames;
+            this.duration = duration;
+        }
+
+        public LatencyHistogram getDrawHistogram() {
+            return draw;
+        }
+
+        public LatencyHistogram getIntervalHistogram() {
+            return interval;
+        }
+
+        /**
+         * Returns latency of the first frame of the gesture, or -1 if no frame has shown it's
+         * input.
+         */
+        public long getFirstFrameLatency() {
+            return firstFrameLatency;
+        }
+
+        public long getFrameCount() {
+            return frames;
+        }
+
+        public long getDroppedFrameCount() {
+            return droppedFrames;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frames + " dropped=" + droppedFrames +
+                    " firstFrame=" + (firstFrameLatency == -1 ? "none" : firstFrameLatency + "us") +
+                    " draw[p50=" + draw.getValueAtPercentile(50) + "us p95=" + draw.getValueAtPercentile(95) +
+                    "us max=" + draw.getMax() + "us]" +
+                    " interval[p50=" + interval.getValueAtPercentile(50) + "us p95=" + interval.getValueAtPercentile(95) +
+                    "us max=" + interval.getMax() + "us]";
+        }
+    }
+
+    public interface FrameStatsListener {
+
+        /**
+         * Is called on main thread, when a gesture (with it's fling or zoom animation) is
+         * finished.
+         */
+        public void onGestureFinished(GestureFrameStats stats);
+    }
+}
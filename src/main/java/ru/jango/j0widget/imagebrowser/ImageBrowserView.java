@@ -19,47 +19,125 @@
 
 package ru.jango.j0widget.imagebrowser;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
 import android.support.v4.view.GestureDetectorCompat;
 import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
-import android.widget.OverScroller;
+
+import ru.jango.j0util.BmpUtil;
+import ru.jango.j0util.LogUtil;
+import ru.jango.j0widget.TrimMemoryCallbacks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 
 public class ImageBrowserView extends View {
 
-    public static final float DEFAULT_MAX_ZOOM = 15f;
+    public static final float DEFAULT_MAX_ZOOM = ViewportTransform.DEFAULT_MAX_ZOOM;
 
     private static final float AUTOZOOM_AMOUNT = 0.25f;
 
+    // frame delay of animations, when Choreographer is not available (before API 16)
+    private static final long LEGACY_FRAME_DELAY = 10;
+
+    // pinch is continued by zoom momentum, only if it was released right after the last scale
+    private static final long ZOOM_MOMENTUM_MAX_DELAY = 50 * 1000000L;
+
+    // zoom momentum velocity is averaged over scale events of that last period
+    private static final long ZOOM_VELOCITY_WINDOW = 100 * 1000000L;
+    private static final int ZOOM_VELOCITY_SAMPLES = 16;
+
+    /**
+     * How the image is drawn.
+     */
+    public enum RenderPolicy {
+        /**
+         * Always draw with filtering - best quality, but could be slow during gestures.
+         */
+        QUALITY,
+
+        /**
+         * Always draw without filtering.
+         */
+        FAST,
+
+        /**
+         * Draw like {@link #FAST} while a scroll, fling or zoom is running, and like
+         * {@link #QUALITY} when the view is idle.
+         */
+        ADAPTIVE
+    }
+
     private Bitmap bitmap;
-    private float maxZoom;
+    private TiledImage tiledImage;
+    // optional cache of tiles in a mapped file and key of the current tiled image in it
+    private MappedTileCache tileDiskCache;
+    private String tiledImageKey;
+
+    // position of the whole image in content rect; in tiled mode bitmap is only a reduced base
+    // layer, so it's size could differ from the image size
+    private final ViewportTransform transform = new ViewportTransform();
+
+    private ImageLoader imageLoader;
+    // source of the shown image, if it was loaded asynchronously - it could be reloaded after
+    // memory pressure; and whether the shown bitmap is a reduced copy at the moment
+    private ImageLoader.Source imageSource;
+    private boolean downgraded;
+    private boolean restoring;
+    private Drawable placeholder;
+    private ImageLoadListener imageLoadListener;
+
+    private RenderPolicy renderPolicy;
+    // reduced copies of the bitmap, that are drawn, while the view is zoomed out
+    private MipPyramid pyramid;
+    private long pyramidMaxBytes;
+    private boolean touching;
+    private boolean fastFrameDrawn;
+    private boolean animating;
+    private FrameTimingTracker frameTracker;
 
     private final Paint bgPaint = new Paint();
+    private final Paint fastPaint = new Paint();
+    private final Paint qualityPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     private final Rect contentRect = new Rect();
-    private final Rect viewport = new Rect();
 
-    // special vars for optimization: some methods need such objects (Rect and Point), so to not
-    // create them every time, they are created here and reused where needed
+    // special vars for optimization: some methods need such objects (Rect, Point and Matrix), so
+    // to not create them every time, they are created here and reused where needed
     private final Rect rectBuffer = new Rect();
+    private final Rect visibleRect = new Rect();
     private final Point pointBuffer = new Point();
+    private final Matrix matrix = new Matrix();
+
+    // fling, double tap zoom and zoom momentum are advanced together by frame time
+    private ViewportAnimator animator;
+    private boolean frameScheduled;
+    private Object frameCallback;
+    private int zoomDuration;
 
     private ScaleGestureDetector scaleGestureDetector;
     private GestureDetectorCompat gestureDetector;
-    private OverScroller scroller;
-    private Zoomer zoomer;
 
     public ImageBrowserView(Context context) {
         super(context);
@@ -79,17 +157,28 @@ public class ImageBrowserView extends View {
     private void init(Context ctx) {
         scaleGestureDetector = new ScaleGestureDetector(ctx, new ScaleListener());
         gestureDetector = new GestureDetectorCompat(ctx, new GestureListener());
-        scroller = new OverScroller(ctx);
-        zoomer = new Zoomer(getResources().getInteger(android.R.integer.config_shortAnimTime));
+        animator = new ViewportAnimator(transform);
+        zoomDuration = getResources().getInteger(android.R.integer.config_shortAnimTime);
 
-        maxZoom = DEFAULT_MAX_ZOOM;
+        renderPolicy = RenderPolicy.ADAPTIVE;
+        pyramidMaxBytes = MipPyramid.DEFAULT_MAX_BYTES;
+        fastPaint.setFilterBitmap(false);
     }
 
     public void setImageBitmap(Bitmap bmp) {
+        cancelImageLoading();
+        imageSource = null;
+        showBitmap(bmp);
+    }
+
+    private void showBitmap(Bitmap bmp) {
+        releaseTiledImage();
         bitmap = bmp;
+        downgraded = false;
+        createPyramid();
+        transform.setImageSize(bmp != null ? bmp.getWidth() : 0, bmp != null ? bmp.getHeight() : 0);
         if (bitmap == null) return;
 
-        viewport.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
         bgPaint.setColor(bmp.getPixel(0, 0));
 
         ViewCompat.postInvalidateOnAnimation(this);
@@ -97,7 +186,7 @@ public class ImageBrowserView extends View {
 
     public void setImageDrawable(Drawable drawable) {
         if (drawable == null) {
-            bitmap = null;
+            setImageBitmap(null);
             return;
         }
 
@@ -108,16 +197,178 @@ public class ImageBrowserView extends View {
         setImageBitmap(BitmapFactory.decodeResource(getResources(), res));
     }
 
+    /**
+     * Shows huge image by tiles (see {@link ru.jango.j0widget.imagebrowser.TiledImage}): only
+     * visible tiles are decoded, with resolution, that matches current zoom. While tiles are
+     * decoded, low resolution base layer is shown.
+     *
+     * @param decoder   decoder of the image; view takes care of recycling it
+     */
+    public void setTiledImage(BitmapRegionDecoder decoder) {
+        setTiledImage(decoder, null);
+    }
+
+    /**
+     * Same as {@link #setTiledImage(android.graphics.BitmapRegionDecoder)}, but decoded tiles are
+     * also kept in the disk cache (see {@link #setTileDiskCache(MappedTileCache)}) by the
+     * specified key.
+     *
+     * @param decoder   decoder of the image; view takes care of recycling it
+     * @param imageKey  key of the image in the disk cache; may be NULL, than disk cache is not used
+     */
+    public void setTiledImage(BitmapRegionDecoder decoder, String imageKey) {
+        cancelImageLoading();
+        releaseTiledImage();
+        imageSource = null;
+        downgraded = false;
+        bitmap = null;
+
+        tiledImage = new TiledImage(decoder);
+        tiledImage.setTileListener(new TiledImageListener(this));
+        tiledImage.setDiskCache(tileDiskCache, imageKey);
+        tiledImageKey = imageKey;
+        transform.setImageSize(tiledImage.getWidth(), tiledImage.getHeight());
+
+        requestTiledImageBase();
+        ViewCompat.postInvalidateOnAnimation(this);
+    }
+
+    /**
+     * Tiles of the file are kept in the disk cache (if it's set) by the key from
+     * {@link ru.jango.j0widget.imagebrowser.MappedTileCache#makeImageKey(java.io.File)}.
+     *
+     * @see #setTiledImage(android.graphics.BitmapRegionDecoder)
+     */
+    public void setTiledImage(String pathName) throws IOException {
+        setTiledImage(BitmapRegionDecoder.newInstance(pathName, false),
+                MappedTileCache.makeImageKey(new File(pathName)));
+    }
+
+    /**
+     * @see #setTiledImage(android.graphics.BitmapRegionDecoder)
+     */
+    public void setTiledImage(InputStream stream) throws IOException {
+        setTiledImage(BitmapRegionDecoder.newInstance(stream, false));
+    }
+
+    public boolean isTiled() {
+        return tiledImage != null;
+    }
+
+    /**
+     * Returns shown bitmap. In tiled mode it's the low resolution base layer, or NULL if it's not
+     * decoded yet.
+     */
     public Bitmap getBitmap() {
         return bitmap;
     }
 
+    /**
+     * Returns width of the whole image in pixels; in tiled mode it may differ from
+     * {@link #getBitmap()} width.
+     */
+    public int getImageWidth() {
+        return transform.getImageWidth();
+    }
+
+    public int getImageHeight() {
+        return transform.getImageHeight();
+    }
+
+    /**
+     * Returns current position of the image. It could be read, but should not be changed.
+     */
+    public ViewportTransform getViewportTransform() {
+        return transform;
+    }
+
+    /**
+     * Drawable, that is shown while an image is loaded asynchronously; may be NULL.
+     */
+    public void setPlaceholder(Drawable placeholder) {
+        this.placeholder = placeholder;
+    }
+
+    public Drawable getPlaceholder() {
+        return placeholder;
+    }
+
+    public void setImageLoadListener(ImageLoadListener listener) {
+        this.imageLoadListener = listener;
+    }
+
+    public ImageLoadListener getImageLoadListener() {
+        return imageLoadListener;
+    }
+
+    public RenderPolicy getRenderPolicy() {
+        return renderPolicy;
+    }
+
+    public void setRenderPolicy(RenderPolicy renderPolicy) {
+        this.renderPolicy = renderPolicy;
+        ViewCompat.postInvalidateOnAnimation(this);
+    }
+
+    /**
+     * Returns TRUE, if the image could be scrolled horizontally in the specified direction.
+     *
+     * @param direction negative to check scrolling to the left, positive - to the right
+     */
+    public boolean canScrollImage(int direction) {
+        return transform.canScrollHorizontally(direction);
+    }
+
+    /**
+     * Is called, when user flings the image, but it could not be scrolled in that direction
+     * any more. By default does nothing.
+     *
+     * @return TRUE, if the fling was consumed
+     */
+    protected boolean onEdgeFling(float velocityX, float velocityY) {
+        return false;
+    }
+
+    /**
+     * Returns TRUE, if the user touches the view or a fling or zoom animation is running.
+     */
+    public boolean isInteracting() {
+        return touching || scaleGestureDetector.isInProgress() ||
+                animator.isRunning();
+    }
+
+    public long getMipPyramidMaxBytes() {
+        return pyramidMaxBytes;
+    }
+
+    /**
+     * Sets max memory, that reduced copies of the bitmap (see
+     * {@link ru.jango.j0widget.imagebrowser.MipPyramid}) could take.
+     */
+    public void setMipPyramidMaxBytes(long maxBytes) {
+        this.pyramidMaxBytes = maxBytes;
+        if (pyramid != null) pyramid.setMaxBytes(maxBytes);
+    }
+
+    public FrameTimingTracker getFrameTimingTracker() {
+        return frameTracker;
+    }
+
+    /**
+     * Sets tracker, that collects frame timings of gestures; NULL (by default) turns the
+     * instrumentation off.
+     */
+    public void setFrameTimingTracker(FrameTimingTracker tracker) {
+        this.frameTracker = tracker;
+    }
+
     public void setMaxZoom(float maxZoom) {
-        this.maxZoom = maxZoom;
+        transform.setMaxZoom(maxZoom);
+        ViewCompat.postInvalidateOnAnimation(this);
     }
 
     public float getMaxZoom() {
-        return maxZoom;
+        return transform.getMaxZoom();
     }
 
     private Bitmap drawableToBitmap(Drawable drawable) {
@@ -137,223 +388,703 @@ public class ImageBrowserView extends View {
         return bitmap;
     }
 
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Asynchronous loading
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Loads image from a file asynchronously.
+     *
+     * @see #loadImage(ru.jango.j0widget.imagebrowser.ImageLoader.Source)
+     */
+    public void loadImageFile(File file) {
+        loadImage(ImageLoader.fromFile(file));
+    }
+
+    /**
+     * Loads image from a content URI asynchronously.
+     *
+     * @see #loadImage(ru.jango.j0widget.imagebrowser.ImageLoader.Source)
+     */
+    public void loadImageUri(Uri uri) {
+        loadImage(ImageLoader.fromUri(getContext().getContentResolver(), uri));
+    }
+
+    /**
+     * Loads image from a resource asynchronously; unlike {@link #setImageResource(int)} image
+     * is not scaled according to screen density.
+     *
+     * @see #loadImage(ru.jango.j0widget.imagebrowser.ImageLoader.Source)
+     */
+    public void loadImageResource(int res) {
+        loadImage(ImageLoader.fromResource(getResources(), res));
+    }
+
+    /**
+     * Loads image on a background thread (see {@link ru.jango.j0widget.imagebrowser.ImageLoader}).
+     * Image is subsampled while decoding: it keeps only as many pixels, as the view needs to show
+     * it at {@link #getMaxZoom()}. Previous unfinished loading is cancelled; while loading
+     * {@link #getPlaceholder()} is shown.
+     */
+    public void loadImage(ImageLoader.Source source) {
+        cancelImageLoading();
+        showBitmap(placeholder == null ? null : drawableToBitmap(placeholder));
+
+        imageSource = source;
+        startImageLoader();
+
+        if (imageLoadListener != null)
+            imageLoadListener.onLoadStarted(this);
+    }
+
+    /**
+     * Shows image, that was loaded by the specified loader somewhere else (for example,
+     * prefetched). If it was decoded with less details, than the view needs, it's reloaded in
+     * full quality, when it's zoomed in so much, that the bitmap lacks pixels.
+     */
+    protected void showLoadedImage(ImageLoader loader, Bitmap bmp) {
+        cancelImageLoading();
+        imageSource = loader.getSource();
+        showBitmap(bmp);
+
+        final Point size = getRequiredImageSize(pointBuffer);
+        downgraded = loader.getSampleSize() > ImageLoader.calculateSampleSize(
+                loader.getSourceWidth(), loader.getSourceHeight(), size.x, size.y);
+    }
+
+    /**
+     * Shows {@link #getPlaceholder()} (or nothing) and stops loading.
+     */
+    protected void showPlaceholder() {
+        cancelImageLoading();
+        imageSource = null;
+        showBitmap(placeholder == null ? null : drawableToBitmap(placeholder));
+    }
+
+    public boolean isLoading() {
+        return imageLoader != null;
+    }
+
+    /**
+     * Cancels unfinished asynchronous loading, if any.
+     */
+    public void cancelImageLoading() {
+        if (imageLoader == null) return;
+
+        imageLoader.cancel();
+        imageLoader = null;
+        restoring = false;
+    }
+
+    private void startImageLoader() {
+        // could be called from onDraw(), so the buffer is used
+        final Point size = getRequiredImageSize(pointBuffer);
+        imageLoader = new ImageLoader(imageSource, size.x, size.y, new LoaderListener());
+        imageLoader.start();
+    }
+
+    /**
+     * Image should have enough pixels to be shown at max zoom. If the view is not laid out yet,
+     * screen size is used.
+     */
+    private Point getRequiredImageSize(final Point ret) {
+        getContentSize(ret);
+        ret.set((int) Math.min(ret.x * getMaxZoom(), BmpUtil.MAX_TEXTURE_SIZE),
+                (int) Math.min(ret.y * getMaxZoom(), BmpUtil.MAX_TEXTURE_SIZE));
+        return ret;
+    }
+
+    protected Point getContentSize(final Point ret) {
+        if (contentRect.isEmpty())
+            ret.set(getResources().getDisplayMetrics().widthPixels, getResources().getDisplayMetrics().heightPixels);
+        else ret.set(contentRect.width(), contentRect.height());
+
+        return ret;
+    }
+
+    private class LoaderListener implements ImageLoader.ImageLoaderListener {
+
+        @Override
+        public void onImageLoaded(ImageLoader loader, Bitmap bmp) {
+            if (loader != imageLoader) {
+                bmp.recycle();
+                return;
+            }
+
+            imageLoader = null;
+            if (restoring) {
+                restoring = false;
+                restoreBitmap(bmp);
+                return;
+            }
+
+            showBitmap(bmp);
+            if (imageLoadListener != null)
+                imageLoadListener.onLoadFinished(ImageBrowserView.this, bmp);
+        }
+
+        @Override
+        public void onImageLoadFailed(ImageLoader loader, Exception e) {
+            if (loader != imageLoader) return;
+
+            imageLoader = null;
+            LogUtil.e(ImageBrowserView.class, "Image loading failed: " + e);
+            if (restoring) {
+                // reduced copy stays; don't try again
+                restoring = false;
+                imageSource = null;
+                return;
+            }
+
+            if (imageLoadListener != null)
+                imageLoadListener.onLoadFailed(ImageBrowserView.this, e);
+        }
+    }
+
+    public interface ImageLoadListener {
+
+        /**
+         * Asynchronous loading has started; placeholder (if any) is already shown.
+         */
+        public void onLoadStarted(ImageBrowserView view);
+
+        /**
+         * Image was loaded and is shown.
+         */
+        public void onLoadFinished(ImageBrowserView view, Bitmap bmp);
+
+        public void onLoadFailed(ImageBrowserView view, Exception e);
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Tiles staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Sets cache, that keeps decoded tiles of huge images as raw pixels in a memory-mapped file
+     * (see {@link ru.jango.j0widget.imagebrowser.MappedTileCache}), so zooming back into an area,
+     * that was already shown, doesn't need decoding. Cache is not closed by the view and could be
+     * shared between several views.
+     *
+     * @param cache cache of tiles; may be NULL
+     */
+    public void setTileDiskCache(MappedTileCache cache) {
+        this.tileDiskCache = cache;
+        if (tiledImage != null) tiledImage.setDiskCache(cache, tiledImageKey);
+    }
+
+    public MappedTileCache getTileDiskCache() {
+        return tileDiskCache;
+    }
+
+    private void releaseTiledImage() {
+        if (tiledImage == null) return;
+
+        tiledImage.setTileListener(null);
+        tiledImage.release();
+        tiledImage = null;
+        tiledImageKey = null;
+    }
+
+    private void requestTiledImageBase() {
+        if (tiledImage == null) return;
+
+        // base layer should fill the view, when the whole image is shown
+        if (contentRect.isEmpty()) tiledImage.requestBase(BmpUtil.MAX_TEXTURE_SIZE / 2, BmpUtil.MAX_TEXTURE_SIZE / 2);
+        else tiledImage.requestBase(contentRect.width(), contentRect.height());
+    }
+
+    // keeps only a weak reference to the view, so the decoding thread doesn't leak it
+    private static class TiledImageListener implements TiledImage.TileListener {
+
+        private final WeakReference<ImageBrowserView> viewRef;
+
+        private TiledImageListener(ImageBrowserView view) {
+            this.viewRef = new WeakReference<ImageBrowserView>(view);
+        }
+
+        @Override
+        public void onBaseDecoded(Bitmap base) {
+            final ImageBrowserView view = viewRef.get();
+            if (view == null) {
+                base.recycle();
+                return;
+            }
+
+            view.bitmap = base;
+            view.createPyramid();
+            view.bgPaint.setColor(base.getPixel(0, 0));
+            ViewCompat.postInvalidateOnAnimation(view);
+        }
+
+        @Override
+        public void onTileDecoded() {
+            final ImageBrowserView view = viewRef.get();
+            if (view != null) ViewCompat.postInvalidateOnAnimation(view);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Drawing staff
+    //
+    ///////////////////////////////////////////////////////////////
+
     @Override
     protected void onSizeChanged(int w, int h, int oldW, int oldH) {
         super.onSizeChanged(w, h, oldW, oldH);
         contentRect.set(getPaddingLeft(), getPaddingTop(), w - getPaddingRight(), h - getPaddingBottom());
-        checkViewportEmpty();
-        checkViewportShapeAndBounds();
+        transform.setViewSize(contentRect.width(), contentRect.height());
+        if (tiledImage != null && bitmap == null) requestTiledImageBase();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (bitmap == null) return;
-
-        checkViewportEmpty();
-        makeViewportDestRect(rectBuffer);
+        if (transform.isEmpty()) return;
 
+        final long startNanos = frameTracker == null ? 0 : System.nanoTime();
+        checkRestoreBitmap();
         canvas.drawRect(contentRect, bgPaint);
-        canvas.drawBitmap(bitmap, viewport, rectBuffer, null);
-    }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        if (bitmap == null) return false;
+        final boolean fast = isFastFrame();
+        final Paint paint = fast ? fastPaint : qualityPaint;
+        final int saveCount = canvas.save();
+        canvas.clipRect(contentRect);
 
-        return scaleGestureDetector.onTouchEvent(event) |
-                gestureDetector.onTouchEvent(event) |
-                super.onTouchEvent(event);
-    }
+        if (bitmap != null) {
+            final Bitmap src = pyramid == null ? bitmap :
+                    pyramid.getLevelFor(transform.getScaleFactor() * bitmap.getWidth() / transform.getImageWidth());
+            canvas.drawBitmap(src, makeBitmapMatrix(src, matrix), paint);
+        }
 
-    @Override
-    public void computeScroll() {
-        super.computeScroll();
-        if (bitmap == null) return;
+        if (tiledImage != null) {
+            // tiles are needed only if they have more details, than the base layer
+            final int sampleSize = TiledImage.getSampleSize(transform.getScaleFactor());
+            if (bitmap == null || sampleSize * bitmap.getWidth() < transform.getImageWidth()) {
+                makeVisibleRects(visibleRect, rectBuffer);
+                tiledImage.draw(canvas, visibleRect, rectBuffer, sampleSize, paint);
+            } else tiledImage.cancelRequests();
+        }
 
-        if (scroller.computeScrollOffset()) {
-            viewport.offset(scroller.getCurrX() - viewport.left, 0);
-            viewport.offset(0, scroller.getCurrY() - viewport.top);
+        canvas.restoreToCount(saveCount);
+        fastFrameDrawn = fast;
 
-            checkViewportBounds();
-            ViewCompat.postInvalidateOnAnimation(this);
+        if (frameTracker != null) {
+            final long endNanos = System.nanoTime();
+            frameTracker.onFrame(startNanos, endNanos, animating);
+            // gesture ends with the first frame, that is drawn after the view has become idle
+            if (!isInteracting()) frameTracker.onIdle(endNanos);
         }
+        animating = false;
+    }
 
-        if (zoomer.computeZoom()) {
-            viewport.set(zoomer.getCurrentRect());
-            checkViewportShapeAndBounds();
-            ViewCompat.postInvalidateOnAnimation(this);
+    private boolean isFastFrame() {
+        switch (renderPolicy) {
+            case FAST: return true;
+            case QUALITY: return false;
+            default: return isInteracting();
         }
     }
 
     /**
-     * Viewport determines some special part of the bitmap, that should be shown. But a View
-     * itself also has paddings and margins. This method creates a rect, that determines, where
-     * View's content should actually be drawn.
+     * If the last frame was drawn in low quality, redraws the view as soon as it becomes idle.
+     * Redraw is also needed to finish the gesture in {@link FrameTimingTracker} - it's finished
+     * in {@link #onDraw(android.graphics.Canvas)}, after the last frame of the gesture is drawn.
+     */
+    private void checkQualityRedraw() {
+        if (isInteracting()) return;
+
+        if ((fastFrameDrawn && renderPolicy == RenderPolicy.ADAPTIVE)
+                || (frameTracker != null && frameTracker.isInGesture()))
+            ViewCompat.postInvalidateOnAnimation(this);
+    }
+
+    private void trackInput() {
+        if (frameTracker != null)
+            frameTracker.onInput(System.nanoTime());
+    }
+
+    /**
+     * Makes matrix, that draws the bitmap into the current position of the image; bitmap could
+     * be a reduced copy of the image (tiled base layer or pyramid level).
      *
      * @param ret object, through witch the result would be returned
      */
-    private void makeViewportDestRect(final Rect ret) {
-        ret.set(0, 0, 0, 0);
-        ret.right = (int) Math.floor(viewport.width() / getViewportScaleFactor());
-        ret.bottom = (int) Math.floor(viewport.height() / getViewportScaleFactor());
+    private Matrix makeBitmapMatrix(final Bitmap bitmap, final Matrix ret) {
+        final float scale = transform.getScale() * transform.getImageWidth() / bitmap.getWidth();
+        ret.setScale(scale, scale);
+        ret.postTranslate(contentRect.left + transform.getTranslationX(),
+                contentRect.top + transform.getTranslationY());
+        return ret;
+    }
 
-        if (contentRect.width() - ret.right > 1)
-            ret.offset((int) Math.ceil((contentRect.width() - ret.right) / 2), 0);
-        if (contentRect.height() - ret.bottom > 1)
-            ret.offset(0, (int) Math.ceil((contentRect.height() - ret.bottom) / 2));
+    /**
+     * Makes visible part of the image in image coordinates and the rect in view coordinates,
+     * where it's drawn.
+     *
+     * @param image object, through witch the visible part would be returned
+     * @param dest  object, through witch the destination would be returned
+     */
+    private void makeVisibleRects(final Rect image, final Rect dest) {
+        image.set((int) Math.max(0, transform.toImageX(0)),
+                (int) Math.max(0, transform.toImageY(0)),
+                (int) Math.min(transform.getImageWidth(), Math.ceil(transform.toImageX(contentRect.width()))),
+                (int) Math.min(transform.getImageHeight(), Math.ceil(transform.toImageY(contentRect.height()))));
+
+        dest.set(Math.round(transform.toViewX(image.left)) + contentRect.left,
+                Math.round(transform.toViewY(image.top)) + contentRect.top,
+                Math.round(transform.toViewX(image.right)) + contentRect.left,
+                Math.round(transform.toViewY(image.bottom)) + contentRect.top);
     }
 
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Memory staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    private final TrimMemoryCallbacks trimCallbacks = new TrimMemoryCallbacks() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+    };
+
     /**
-     * Checks if viewport rect was initialized. If it wasn't - method initializes it.
+     * Frees memory according to the level. View calls it itself (since API 14), while it's
+     * attached to window; on older versions it could be called from
+     * {@link android.app.Activity#onLowMemory()}.
+     * <ul>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} and higher -
+     * reduced copies of the bitmap (see {@link ru.jango.j0widget.imagebrowser.MipPyramid}) are
+     * dropped</li>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL} and higher -
+     * decoded tiles are dropped from memory (disk cache of tiles is kept) and full quality
+     * reloading is cancelled</li>
+     * <li>{@link android.content.ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} and higher -
+     * asynchronously loaded image is replaced by a copy, that is just as big as the view</li>
+     * </ul>
+     * Quality is restored, when the view is drawn again; reduced image is reloaded only when
+     * it's zoomed in so much, that it lacks details - while the UI is visible, the image is not
+     * downgraded, so memory is not churned by reloading under pressure.
+     *
+     * @param level one of {@link android.content.ComponentCallbacks2} TRIM_MEMORY_* constants
      */
-    private void checkViewportEmpty() {
-        if (bitmap == null) return;
-        if (!viewport.isEmpty()) return;
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && pyramid != null)
+            pyramid.releaseLevels();
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            if (tiledImage != null) tiledImage.clearCache();
+            if (restoring) cancelImageLoading();
+        }
 
-        viewport.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            downgradeBitmap();
     }
 
-    private double getViewportScaleFactor() {
-        if (viewport.isEmpty() || contentRect.isEmpty()) return 1d;
+    /**
+     * Replaces full size bitmap by a copy, that just fits the view. Only bitmaps, that were
+     * loaded by the view itself, are downgraded - they could be loaded again.
+     */
+    private void downgradeBitmap() {
+        if (imageSource == null || bitmap == null || downgraded || isLoading())
+            return;
 
-        double hScale = ((double) viewport.width()) / ((double) contentRect.width());
-        double vScale = ((double) viewport.height()) / ((double) contentRect.height());
-        return (viewport.height() > contentRect.height() || viewport.width() > contentRect.width()) ?
-                Math.max(vScale, hScale) : Math.min(vScale, hScale);
+        final Point size = getContentSize(pointBuffer);
+        final double scale = Math.max(((double) bitmap.getWidth()) / size.x,
+                ((double) bitmap.getHeight()) / size.y);
+        if (scale < 2) return;
+
+        try {
+            final Bitmap copy = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, (int) (bitmap.getWidth() / scale)), Math.max(1, (int) (bitmap.getHeight() / scale)), true);
+            replaceOwnBitmap(copy);
+            downgraded = true;
+        } catch (OutOfMemoryError e) {
+            LogUtil.e(ImageBrowserView.class, "Bitmap could not be downgraded: " + e);
+        }
     }
 
     /**
-     * Checks viewport bounds to be in acceptable range and position.
-     * <ul>
-     * <li>viewport must have the same proportions, as bitmap has</li>
-     * <li>viewport must not be smaller special value, according to {@link #getMaxZoom()}</li>
-     * <li>viewport bounds must not be greater than bitmap bounds</li>
-     * <li>viewport position must be inside bitmap bounds (to show some part of the bitmap,
-     * not just empty space)</li>
-     * </ul>
+     * Starts reloading of the downgraded bitmap, if it's zoomed in so much, that it lacks details.
      */
-    private void checkViewportShapeAndBounds() {
-        if (bitmap == null) return;
+    private void checkRestoreBitmap() {
+        if (!downgraded || imageSource == null || isLoading())
+            return;
+
+        // while one bitmap pixel takes not more than one screen pixel, reduced copy looks the same
+        if (transform.getScale() * transform.getImageWidth() <= bitmap.getWidth())
+            return;
+
+        restoring = true;
+        startImageLoader();
+    }
 
-        calculateSize(viewport.width() * viewport.height(),
-                ((float) contentRect.width()) / ((float) contentRect.height()),
-                pointBuffer);
+    private void restoreBitmap(Bitmap bmp) {
+        // view size could change, so the image could be loaded with another sample size
+        if (bmp.getWidth() != transform.getImageWidth() || bmp.getHeight() != transform.getImageHeight())
+            transform.rescaleImage(bmp.getWidth(), bmp.getHeight());
 
-        viewport.set(viewport.centerX() - pointBuffer.x / 2,
-                viewport.centerY() - pointBuffer.y / 2,
-                viewport.centerX() + pointBuffer.x / 2,
-                viewport.centerY() + pointBuffer.y / 2);
+        replaceOwnBitmap(bmp);
+        downgraded = false;
 
-        checkViewportBounds();
+        ViewCompat.postInvalidateOnAnimation(this);
     }
 
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Pyramid staff
+    //
+    ///////////////////////////////////////////////////////////////
+
     /**
-     * Checks viewport bounds to be in acceptable range and position.
-     * <ul>
-     * <li>viewport must not be smaller special value, according to {@link #getMaxZoom()}</li>
-     * <li>viewport bounds must not be greater than bitmap bounds</li>
-     * <li>viewport position must be inside bitmap bounds (to show some part of the bitmap,
-     * not just empty space)</li>
-     * </ul>
+     * Replaces the bitmap, that was loaded by the view itself, and recycles the old one - not
+     * earlier, than the old pyramid stops building levels from it.
      */
-    private void checkViewportBounds() {
+    private void replaceOwnBitmap(Bitmap bmp) {
+        final Bitmap old = bitmap;
+        final MipPyramid oldPyramid = pyramid;
+        pyramid = null;
+        bitmap = bmp;
+        createPyramid();
+
+        if (oldPyramid != null && oldPyramid.getSource() == old) oldPyramid.release(true);
+        else if (old != null) old.recycle();
+    }
+
+    private void createPyramid() {
+        if (pyramid != null) pyramid.release();
+        pyramid = null;
         if (bitmap == null) return;
 
-        if (viewport.width() < bitmap.getWidth() / maxZoom || viewport.height() < bitmap.getHeight() / maxZoom) {
-            int spread = (int) Math.max(bitmap.getWidth() / maxZoom - viewport.width(), (bitmap.getHeight() / maxZoom - viewport.height()));
-            viewport.inset(-spread, -spread);
+        pyramid = new MipPyramid(bitmap, pyramidMaxBytes);
+        pyramid.setPyramidListener(new MipPyramid.PyramidListener() {
+            @Override
+            public void onLevelsBuilt(MipPyramid pyramid) {
+                ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
+            }
+        });
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        trimCallbacks.register(getContext());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        animator.stop();
+        cancelAnimationFrame();
+        trimCallbacks.unregister();
+        // lets the decoding thread of tiles exit; it's started again by drawing
+        if (tiledImage != null) tiledImage.cancelRequests();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (transform.isEmpty()) return false;
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                touching = true;
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                touching = false;
+                break;
         }
 
-        if (viewport.width() > bitmap.getWidth()) {
-            viewport.left = 0;
-            viewport.right = bitmap.getWidth();
-        } else if (viewport.left < 0) viewport.offset(-viewport.left, 0);
-        else if (viewport.right > bitmap.getWidth())
-            viewport.offset(bitmap.getWidth() - viewport.right, 0);
+        final boolean ret = scaleGestureDetector.onTouchEvent(event) |
+                gestureDetector.onTouchEvent(event) |
+                super.onTouchEvent(event);
+
+        checkQualityRedraw();
+        return ret;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Animation staff
+    //
+    ///////////////////////////////////////////////////////////////
 
-        if (viewport.height() > bitmap.getHeight()) {
-            viewport.top = 0;
-            viewport.bottom = bitmap.getHeight();
-        } else if (viewport.top < 0) viewport.offset(0, -viewport.top);
-        else if (viewport.bottom > bitmap.getHeight())
-            viewport.offset(0, bitmap.getHeight() - viewport.bottom);
+    public ViewportAnimator getViewportAnimator() {
+        return animator;
     }
 
     /**
-     * Calculates rectangle sides based on it's square and proportions. The point is to create a
-     * new rect with the same square, but with the appropriate proportions of sides. This method
-     * is a part of this process.
-     *
-     * @param square square of the source rectangle (width * height)
-     * @param pro    sides factor of the source rectangle (width / height)
-     * @param ret    object, through witch the result would be returned
+     * Requests the next animation frame; several requests during one frame are coalesced.
+     */
+    private void scheduleAnimationFrame() {
+        if (frameScheduled) return;
+        frameScheduled = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (frameCallback == null) frameCallback = JellyBeanPlus.createFrameCallback(this);
+            JellyBeanPlus.postFrameCallback(frameCallback);
+        } else postDelayed(legacyFrame, LEGACY_FRAME_DELAY);
+    }
+
+    private void cancelAnimationFrame() {
+        if (!frameScheduled) return;
+        frameScheduled = false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) JellyBeanPlus.removeFrameCallback(frameCallback);
+        else removeCallbacks(legacyFrame);
+    }
+
+    private final Runnable legacyFrame = new Runnable() {
+        @Override
+        public void run() {
+            doAnimationFrame(System.nanoTime());
+        }
+    };
+
+    /**
+     * Advances all animations by the frame time and invalidates the view once.
      */
-    private void calculateSize(float square, float pro, final Point ret) {
-        float height = (float) Math.sqrt(square / pro);
-        float width = height * pro;
-        ret.set((int) width, (int) height);
+    private void doAnimationFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        if (transform.isEmpty() || !animator.isRunning()) {
+            checkQualityRedraw();
+            return;
+        }
+
+        animating = true;
+        if (animator.step(frameTimeNanos)) scheduleAnimationFrame();
+        else checkQualityRedraw();
+
+        invalidate();
+    }
+
+    @TargetApi(16)
+    /** Wrapper class to protect access to API version 16 and above features */
+    private static final class JellyBeanPlus {
+        static {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                throw new RuntimeException("Should not get to JellyBeanPlus class unless sdk is >= 16!");
+            }
+        }
+
+        public static Object createFrameCallback(final ImageBrowserView view) {
+            return new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    view.doAnimationFrame(frameTimeNanos);
+                }
+            };
+        }
+
+        public static void postFrameCallback(Object callback) {
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+        }
+
+        public static void removeFrameCallback(Object callback) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+        }
     }
 
     private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
-        private float initSpan;
-        private final Rect initViewport = new Rect();
+        // recent scale events for zoom momentum: end moment, duration and scale change (natural
+        // logarithm); it's a ring buffer
+        private final long[] sampleTimes = new long[ZOOM_VELOCITY_SAMPLES];
+        private final long[] sampleDurations = new long[ZOOM_VELOCITY_SAMPLES];
+        private final double[] sampleLogs = new double[ZOOM_VELOCITY_SAMPLES];
+        private int sampleCount;
+        private int nextSample;
+        private long lastScaleNanos;
 
         @Override
         public boolean onScaleBegin(ScaleGestureDetector sgd) {
-            initSpan = sgd.getCurrentSpan();
-            initViewport.set(viewport);
+            animator.stop();
+            sampleCount = 0;
+            nextSample = 0;
+            lastScaleNanos = System.nanoTime();
             return true;
         }
 
         @Override
         public boolean onScale(ScaleGestureDetector sgd) {
-            int dx = (int) ((sgd.getFocusX() - contentRect.exactCenterX()) * getViewportScaleFactor() * (1f - 1 / sgd.getScaleFactor()));
-            int dy = (int) ((sgd.getFocusY() - contentRect.exactCenterY()) * getViewportScaleFactor() * (1f - 1 / sgd.getScaleFactor()));
-
-            int centerX = viewport.centerX() + dx;
-            int centerY = viewport.centerY() + dy;
-            float scale = initSpan / sgd.getCurrentSpan();
-            viewport.set(centerX - ((int) ((initViewport.width() * scale) / 2)),
-                    centerY - ((int) ((initViewport.height() * scale) / 2)),
-                    centerX + ((int) ((initViewport.width() * scale) / 2)),
-                    centerY + ((int) ((initViewport.height() * scale) / 2)));
-
-            checkViewportShapeAndBounds();
+            transform.zoomBy(sgd.getScaleFactor(),
+                    sgd.getFocusX() - contentRect.left, sgd.getFocusY() - contentRect.top);
+            trackInput();
+
+            final long now = System.nanoTime();
+            if (now > lastScaleNanos && sgd.getScaleFactor() > 0) {
+                sampleTimes[nextSample] = now;
+                sampleDurations[nextSample] = now - lastScaleNanos;
+                sampleLogs[nextSample] = Math.log(sgd.getScaleFactor());
+                nextSample = (nextSample + 1) % ZOOM_VELOCITY_SAMPLES;
+                if (sampleCount < ZOOM_VELOCITY_SAMPLES) sampleCount++;
+            }
+            lastScaleNanos = now;
+
             ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
             return true;
         }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector sgd) {
+            final long now = System.nanoTime();
+            if (now - lastScaleNanos > ZOOM_MOMENTUM_MAX_DELAY)
+                return;
+
+            animator.startZoomMomentum(getVelocity(),
+                    sgd.getFocusX() - contentRect.left, sgd.getFocusY() - contentRect.top, now);
+            scheduleAnimationFrame();
+        }
+
+        /**
+         * Returns velocity of scale change (natural logarithm per second): summary scale change
+         * of the events in the last ZOOM_VELOCITY_WINDOW, divided by their duration.
+         */
+        private float getVelocity() {
+            long duration = 0;
+            double log = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                final int sample = (nextSample - 1 - i + ZOOM_VELOCITY_SAMPLES) % ZOOM_VELOCITY_SAMPLES;
+                if (lastScaleNanos - sampleTimes[sample] > ZOOM_VELOCITY_WINDOW)
+                    break;
+
+                duration += sampleDurations[sample];
+                log += sampleLogs[sample];
+            }
+
+            return duration == 0 ? 0 : (float) (log * 1000000000d / duration);
+        }
     }
 
     private class GestureListener extends GestureDetector.SimpleOnGestureListener {
 
         @Override
         public boolean onDown(MotionEvent e) {
-            scroller.forceFinished(true);
+            animator.stop();
             ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
             return true;
         }
 
         @Override
         public boolean onDoubleTap(MotionEvent e) {
-            makeViewportDestRect(rectBuffer);
-
-            int viewportX = viewport.left + ((int) ((e.getX() - rectBuffer.left) * getViewportScaleFactor()));
-            int viewportY = viewport.top + ((int) ((e.getY() - rectBuffer.top) * getViewportScaleFactor()));
-            if (viewportX < 0) viewportX = 0;
-            if (viewportY < 0) viewportY = 0;
+            animator.startZoom(e.getX() - contentRect.left, e.getY() - contentRect.top,
+                    transform.getScale() / (1f - AUTOZOOM_AMOUNT), zoomDuration, System.nanoTime());
+            trackInput();
 
-            zoomer.forceFinished(true);
-            zoomer.startZoom(viewport, new Point(viewportX, viewportY), AUTOZOOM_AMOUNT);
-
-            ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
+            scheduleAnimationFrame();
             return true;
         }
 
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-            viewport.offset((int) (getViewportScaleFactor() * distanceX), (int) (getViewportScaleFactor() * distanceY));
-            checkViewportBounds();
+            transform.scrollBy(distanceX, distanceY);
+            trackInput();
 
             ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
             return true;
@@ -361,12 +1092,15 @@ public class ImageBrowserView extends View {
 
         @Override
         public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
-            scroller.forceFinished(true);
-            scroller.fling(viewport.left, viewport.top, (int) (-velocityX), (int) (-velocityY),
-                    0, bitmap.getWidth() - viewport.width(), 0, bitmap.getHeight() - viewport.height(),
-                    0, 0);
+            // fling to the left means scrolling the image to the right
+            if (Math.abs(velocityX) > Math.abs(velocityY) && !canScrollImage(velocityX < 0 ? 1 : -1) &&
+                    onEdgeFling(velocityX, velocityY))
+                return true;
 
-            ViewCompat.postInvalidateOnAnimation(ImageBrowserView.this);
+            animator.startFling(velocityX, velocityY, System.nanoTime());
+            trackInput();
+
+            scheduleAnimationFrame();
             return true;
         }
     }
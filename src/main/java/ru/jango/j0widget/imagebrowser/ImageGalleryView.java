@@ -0,0 +1,217 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.util.AttributeSet;
+
+import java.util.List;
+
+/**
+ * {@link ru.jango.j0widget.imagebrowser.ImageBrowserView} for browsing a sequence of images:
+ * when the image could not be scrolled any more, fling to the left shows the next image, fling
+ * to the right - the previous one.
+ * <p/>
+ * Neighbour images are prefetched by {@link ru.jango.j0widget.imagebrowser.ImagePrefetcher}
+ * at the view resolution, so switching doesn't wait for decoding. The shown image is reloaded
+ * in full quality in background, when it's needed for zooming.
+ */
+public class ImageGalleryView extends ImageBrowserView {
+
+    private ImagePrefetcher prefetcher;
+    private int currentIndex;
+    private boolean waiting;
+    private OnImageChangedListener imageChangedListener;
+
+    public ImageGalleryView(Context context) {
+        super(context);
+        init();
+    }
+
+    public ImageGalleryView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public ImageGalleryView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        prefetcher = new ImagePrefetcher();
+        prefetcher.setPrefetchListener(new GalleryPrefetchListener());
+        currentIndex = -1;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Sets images to browse and shows the first one.
+     */
+    public void setSources(List<ImageLoader.Source> sources) {
+        prefetcher.setSources(sources);
+        currentIndex = -1;
+        if (sources.isEmpty()) showPlaceholder();
+        else setCurrentIndex(0);
+    }
+
+    public List<ImageLoader.Source> getSources() {
+        return prefetcher.getSources();
+    }
+
+    public int getImageCount() {
+        return getSources().size();
+    }
+
+    public int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * Returns number of images before and after the current one, that are kept decoded.
+     */
+    public int getPrefetchRadius() {
+        return prefetcher.getRadius();
+    }
+
+    public void setPrefetchRadius(int radius) {
+        prefetcher.setRadius(radius);
+    }
+
+    public OnImageChangedListener getOnImageChangedListener() {
+        return imageChangedListener;
+    }
+
+    public void setOnImageChangedListener(OnImageChangedListener listener) {
+        this.imageChangedListener = listener;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Gallery staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Shows the specified image. If it's not prefetched yet, placeholder is shown, until it's
+     * decoded.
+     *
+     * @return FALSE, if there is no such image
+     */
+    public boolean setCurrentIndex(int index) {
+        if (index < 0 || index >= getImageCount())
+            return false;
+
+        currentIndex = index;
+        final Point size = getContentSize(new Point());
+        prefetcher.setRequiredSize(size.x, size.y);
+        prefetcher.setCenter(index);
+
+        if (!showPrefetched()) {
+            showPlaceholder();
+            waiting = true;
+            if (getImageLoadListener() != null)
+                getImageLoadListener().onLoadStarted(this);
+        }
+
+        if (imageChangedListener != null)
+            imageChangedListener.onImageChanged(this, index);
+        return true;
+    }
+
+    public boolean showNext() {
+        return setCurrentIndex(currentIndex + 1);
+    }
+
+    public boolean showPrevious() {
+        return setCurrentIndex(currentIndex - 1);
+    }
+
+    private boolean showPrefetched() {
+        final ImageLoader loader = prefetcher.getLoader(currentIndex);
+        final Bitmap bmp = prefetcher.take(currentIndex);
+        if (bmp == null)
+            return false;
+
+        final boolean wasWaiting = waiting;
+        waiting = false;
+        showLoadedImage(loader, bmp);
+
+        if (wasWaiting && getImageLoadListener() != null)
+            getImageLoadListener().onLoadFinished(this, bmp);
+        return true;
+    }
+
+    @Override
+    protected boolean onEdgeFling(float velocityX, float velocityY) {
+        return velocityX < 0 ? showNext() : showPrevious();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldW, int oldH) {
+        super.onSizeChanged(w, h, oldW, oldH);
+        final Point size = getContentSize(new Point());
+        prefetcher.setRequiredSize(size.x, size.y);
+    }
+
+    /**
+     * Besides {@link ru.jango.j0widget.imagebrowser.ImageBrowserView#trimMemory(int)} drops
+     * prefetched images since {@link android.content.ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL};
+     * they would be prefetched again, when the current image changes.
+     */
+    @Override
+    public void trimMemory(int level) {
+        super.trimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL && !waiting)
+            prefetcher.clear();
+    }
+
+    private class GalleryPrefetchListener implements ImagePrefetcher.PrefetchListener {
+
+        @Override
+        public void onPrefetched(int index) {
+            if (waiting && index == currentIndex)
+                showPrefetched();
+        }
+
+        @Override
+        public void onPrefetchFailed(int index, Exception e) {
+            if (!waiting || index != currentIndex)
+                return;
+
+            waiting = false;
+            if (getImageLoadListener() != null)
+                getImageLoadListener().onLoadFailed(ImageGalleryView.this, e);
+        }
+    }
+
+    public interface OnImageChangedListener {
+        public void onImageChanged(ImageGalleryView view, int index);
+    }
+}
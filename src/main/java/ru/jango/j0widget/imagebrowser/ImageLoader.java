@@ -0,0 +1,324 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.content.ContentResolver;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ru.jango.j0util.BmpUtil;
+
+/**
+ * Helper class for asynchronous loading images into
+ * {@link ru.jango.j0widget.imagebrowser.ImageBrowserView}. Image is decoded on a background
+ * thread and is subsampled right while decoding (by
+ * {@link android.graphics.BitmapFactory.Options#inSampleSize}), so that it's not bigger, than
+ * the requested size (and {@link ru.jango.j0util.BmpUtil#MAX_TEXTURE_SIZE}) really needs.
+ * <p/>
+ * All loaders share one background thread, so only one image is decoded at a time. Loader
+ * could be cancelled by {@link #cancel()} - if decoding has already started, it's interrupted
+ * and the result is not delivered.
+ */
+public class ImageLoader implements Runnable {
+
+    private static ExecutorService executor;
+
+    private final Source source;
+    private final int reqWidth;
+    private final int reqHeight;
+    private final BitmapFactory.Options options;
+
+    private volatile boolean cancelled;
+    private volatile int sourceWidth;
+    private volatile int sourceHeight;
+    private ImageLoaderListener listener;
+    private Handler mainTreadHandler;
+
+    /**
+     * @param source    where to get the image from
+     * @param reqWidth  min width, that the decoded image should keep (if the image is big
+     *                  enough); 0 means no limit
+     * @param reqHeight min height, that the decoded image should keep; 0 means no limit
+     * @param listener  receives the result on the main thread
+     */
+    public ImageLoader(Source source, int reqWidth, int reqHeight, ImageLoaderListener listener) {
+        this.source = source;
+        this.reqWidth = reqWidth;
+        this.reqHeight = reqHeight;
+        this.listener = listener;
+        this.options = new BitmapFactory.Options();
+        this.cancelled = false;
+
+        mainTreadHandler = new Handler();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public Source getSource() {
+        return source;
+    }
+
+    public int getRequiredWidth() {
+        return reqWidth;
+    }
+
+    public int getRequiredHeight() {
+        return reqHeight;
+    }
+
+    public ImageLoaderListener getListener() {
+        return listener;
+    }
+
+    public void setListener(ImageLoaderListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns original width of the image, or 0, if it's not known yet.
+     */
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * Returns sample size, that was used for decoding, or 0, if it's not known yet.
+     */
+    public int getSampleSize() {
+        return options.inSampleSize;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Loading staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Puts the loader into the shared background thread.
+     */
+    public void start() {
+        getExecutor().execute(this);
+    }
+
+    /**
+     * Cancels loading; result would not be delivered.
+     */
+    public void cancel() {
+        cancelled = true;
+        options.requestCancelDecode();
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) return;
+
+        try {
+            final Bitmap bmp = decode();
+            if (bmp == null && !cancelled)
+                throw new IOException("Image could not be decoded: " + source);
+
+            postResult(bmp, null);
+        } catch (Exception e) {
+            postResult(null, e);
+        } catch (OutOfMemoryError e) {
+            postResult(null, new IOException("Not enough memory to decode image: " + source));
+        }
+    }
+
+    private Bitmap decode() throws IOException {
+        options.inJustDecodeBounds = true;
+        decodeStream();
+        if (cancelled || options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        sourceWidth = options.outWidth;
+        sourceHeight = options.outHeight;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        return decodeStream();
+    }
+
+    private Bitmap decodeStream() throws IOException {
+        final InputStream in = source.open();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void postResult(final Bitmap bmp, final Exception e) {
+        mainTreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled || listener == null) {
+                    if (bmp != null) bmp.recycle();
+                    return;
+                }
+
+                if (e == null) listener.onImageLoaded(ImageLoader.this, bmp);
+                else listener.onImageLoadFailed(ImageLoader.this, e);
+            }
+        });
+    }
+
+    /**
+     * Returns the biggest power of 2 sample size, that still keeps the image at least of the
+     * required size by one of the sides (so, when the image is fit into a view, it still has
+     * enough details), and makes it not bigger than {@link ru.jango.j0util.BmpUtil#MAX_TEXTURE_SIZE}.
+     */
+    public static int calculateSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth > 0 && reqHeight > 0)
+            while (width / (sampleSize * 2) >= reqWidth || height / (sampleSize * 2) >= reqHeight)
+                sampleSize *= 2;
+
+        while (width / sampleSize > BmpUtil.MAX_TEXTURE_SIZE || height / sampleSize > BmpUtil.MAX_TEXTURE_SIZE)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    /**
+     * Returns background thread, that is shared by loaders and other image processing of the
+     * package.
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newSingleThreadExecutor(new LoaderThreadFactory());
+
+        return executor;
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImageLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Sources
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Source of the image. It's opened twice: for reading image bounds and for actual decoding.
+     */
+    public interface Source {
+        public InputStream open() throws IOException;
+    }
+
+    public static Source fromFile(final File file) {
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public String toString() {
+                return file.toString();
+            }
+        };
+    }
+
+    /**
+     * Raw resource is decoded without density scaling, in it's original size.
+     */
+    public static Source fromResource(final Resources resources, final int res) {
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return resources.openRawResource(res);
+            }
+
+            @Override
+            public String toString() {
+                return "resource " + res;
+            }
+        };
+    }
+
+    public static Source fromUri(final ContentResolver resolver, final Uri uri) {
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                final InputStream in = resolver.openInputStream(uri);
+                if (in == null) throw new IOException("Could not open " + uri);
+                return in;
+            }
+
+            @Override
+            public String toString() {
+                return String.valueOf(uri);
+            }
+        };
+    }
+
+    public interface ImageLoaderListener {
+
+        /**
+         * Image was decoded. Called on the main thread.
+         */
+        public void onImageLoaded(ImageLoader loader, Bitmap bmp);
+
+        /**
+         * Image could not be decoded. Called on the main thread.
+         */
+        public void onImageLoadFailed(ImageLoader loader, Exception e);
+    }
+}
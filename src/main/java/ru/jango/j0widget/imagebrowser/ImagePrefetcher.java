@@ -0,0 +1,248 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Keeps a window of decoded images around the current one in a list of
+ * {@link ru.jango.j0widget.imagebrowser.ImageLoader.Source}s: the current image and
+ * {@link #getRadius()} images before and after it are decoded in background at the required
+ * size (usually - screen size). When the window moves, loading of the images, that left it, is
+ * cancelled and their bitmaps are recycled.
+ * <p/>
+ * Bitmaps are owned by prefetcher, until they are taken by {@link #take(int)}. All the methods
+ * should be called on main thread.
+ */
+public class ImagePrefetcher {
+
+    public static final int DEFAULT_RADIUS = 1;
+
+    private List<ImageLoader.Source> sources;
+    private int radius;
+    private int reqWidth;
+    private int reqHeight;
+    private PrefetchListener listener;
+
+    private int center;
+    // loaders are kept, while their images are in the window and not taken; taken image is
+    // loaded again, if it's needed after that
+    private final Map<Integer, ImageLoader> loaders;
+    private final Map<Integer, Bitmap> bitmaps;
+
+    public ImagePrefetcher() {
+        this.sources = Collections.emptyList();
+        this.radius = DEFAULT_RADIUS;
+        this.center = -1;
+        this.loaders = new HashMap<Integer, ImageLoader>();
+        this.bitmaps = new HashMap<Integer, Bitmap>();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public List<ImageLoader.Source> getSources() {
+        return sources;
+    }
+
+    /**
+     * Sets new list of images; everything, that was loaded, is dropped.
+     */
+    public void setSources(List<ImageLoader.Source> sources) {
+        clear();
+        this.sources = Collections.unmodifiableList(new ArrayList<ImageLoader.Source>(sources));
+        this.center = -1;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Sets number of images before and after the current one, that are kept decoded.
+     */
+    public void setRadius(int radius) {
+        this.radius = Math.max(0, radius);
+        if (center != -1) setCenter(center);
+    }
+
+    /**
+     * Sets size, that images are decoded for; see
+     * {@link ru.jango.j0widget.imagebrowser.ImageLoader#calculateSampleSize(int, int, int, int)}.
+     * Already loaded images are not reloaded.
+     */
+    public void setRequiredSize(int width, int height) {
+        this.reqWidth = width;
+        this.reqHeight = height;
+    }
+
+    public int getRequiredWidth() {
+        return reqWidth;
+    }
+
+    public int getRequiredHeight() {
+        return reqHeight;
+    }
+
+    public PrefetchListener getPrefetchListener() {
+        return listener;
+    }
+
+    public void setPrefetchListener(PrefetchListener listener) {
+        this.listener = listener;
+    }
+
+    public int getCenter() {
+        return center;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Window staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Moves the window: images out of it are dropped, missing images are scheduled - the
+     * center one first, than the closest neighbours.
+     */
+    public void setCenter(int index) {
+        center = index;
+
+        final Iterator<Map.Entry<Integer, ImageLoader>> loadersIterator = loaders.entrySet().iterator();
+        while (loadersIterator.hasNext()) {
+            final Map.Entry<Integer, ImageLoader> entry = loadersIterator.next();
+            if (isInWindow(entry.getKey())) continue;
+
+            entry.getValue().cancel();
+            loadersIterator.remove();
+        }
+
+        final Iterator<Map.Entry<Integer, Bitmap>> bitmapsIterator = bitmaps.entrySet().iterator();
+        while (bitmapsIterator.hasNext()) {
+            final Map.Entry<Integer, Bitmap> entry = bitmapsIterator.next();
+            if (isInWindow(entry.getKey())) continue;
+
+            entry.getValue().recycle();
+            bitmapsIterator.remove();
+        }
+
+        load(center);
+        for (int d = 1; d <= radius; d++) {
+            load(center + d);
+            load(center - d);
+        }
+    }
+
+    /**
+     * Returns decoded image and passes it's ownership to the caller; or NULL, if it's not
+     * decoded yet. After that the image is not prefetched any more, so if it's requested again
+     * by {@link #setCenter(int)}, it would be loaded again.
+     */
+    public Bitmap take(int index) {
+        final Bitmap bmp = bitmaps.remove(index);
+        if (bmp != null) loaders.remove(index);
+        return bmp;
+    }
+
+    /**
+     * Returns loader, that has decoded or is decoding the image; or NULL.
+     */
+    public ImageLoader getLoader(int index) {
+        return loaders.get(index);
+    }
+
+    public boolean isLoaded(int index) {
+        return bitmaps.containsKey(index);
+    }
+
+    /**
+     * Cancels all loadings and recycles all bitmaps, that were not taken.
+     */
+    public void clear() {
+        for (ImageLoader loader : loaders.values())
+            loader.cancel();
+        for (Bitmap bmp : bitmaps.values())
+            bmp.recycle();
+
+        loaders.clear();
+        bitmaps.clear();
+    }
+
+    private boolean isInWindow(int index) {
+        return center != -1 && Math.abs(index - center) <= radius;
+    }
+
+    private void load(final int index) {
+        if (index < 0 || index >= sources.size() || loaders.containsKey(index))
+            return;
+
+        final ImageLoader loader = new ImageLoader(sources.get(index), reqWidth, reqHeight,
+                new ImageLoader.ImageLoaderListener() {
+                    @Override
+                    public void onImageLoaded(ImageLoader loader, Bitmap bmp) {
+                        if (loaders.get(index) != loader) {
+                            bmp.recycle();
+                            return;
+                        }
+
+                        bitmaps.put(index, bmp);
+                        if (listener != null)
+                            listener.onPrefetched(index);
+                    }
+
+                    @Override
+                    public void onImageLoadFailed(ImageLoader loader, Exception e) {
+                        if (loaders.get(index) != loader)
+                            return;
+
+                        LogUtil.e(ImagePrefetcher.class, "Image " + index + " prefetching failed: " + e);
+                        if (listener != null)
+                            listener.onPrefetchFailed(index, e);
+                    }
+                });
+
+        loaders.put(index, loader);
+        loader.start();
+    }
+
+    public interface PrefetchListener {
+
+        /**
+         * Image was decoded and could be taken by {@link #take(int)}.
+         */
+        public void onPrefetched(int index);
+
+        public void onPrefetchFailed(int index, Exception e);
+    }
+}
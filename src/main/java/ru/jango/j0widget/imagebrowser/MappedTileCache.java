@@ -0,0 +1,296 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Second level cache of decoded tiles for {@link ru.jango.j0widget.imagebrowser.TiledImage}:
+ * tiles are kept as raw pixels in a memory-mapped file, so when the user zooms back into an area,
+ * that was already shown, tile is just copied from mapped memory instead of decoding the region
+ * again. Pages of the file are managed by the system, so the cache doesn't take java heap and
+ * could be much bigger, than in-memory cache of {@link ru.jango.j0widget.imagebrowser.TiledImage}.
+ * <p/>
+ * File is split into fixed slots, each could hold one tile of {@link #getTileSize()} pixels in
+ * {@link android.graphics.Bitmap.Config#ARGB_8888}; bigger tiles are not cached. Tiles are
+ * identified by image key (see {@link ru.jango.j0widget.imagebrowser.TiledImage#setDiskCache(MappedTileCache, String)})
+ * and tile key, so one cache could be shared between several images and views. When all the
+ * slots are taken, least recently used tile is evicted.
+ * <p/>
+ * Index of the slots is kept in memory only - file content is dropped, when the cache is created
+ * again. All the methods are thread safe.
+ */
+public class MappedTileCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final File file;
+    private final int tileSize;
+    private final int slotSize;
+    private final int slotCount;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+
+    private final LinkedHashMap<String, Slot> index;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    private long hitCount;
+    private long missCount;
+
+    public MappedTileCache(File file) throws IOException {
+        this(file, TiledImage.DEFAULT_TILE_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param file      file for the cache; it's content would be overwritten
+     * @param tileSize  max side of cached tiles; should be not less, than tile size of the images
+     * @param maxBytes  max size of the file; it's rounded down to a whole number of slots
+     */
+    public MappedTileCache(File file, int tileSize, long maxBytes) throws IOException {
+        this.file = file;
+        this.tileSize = Math.max(16, tileSize);
+        this.slotSize = this.tileSize * this.tileSize * BYTES_PER_PIXEL;
+        // single mapping could not be bigger, than 2Gb
+        this.slotCount = (int) Math.max(1, Math.min(maxBytes, Integer.MAX_VALUE) / slotSize);
+
+        this.index = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+        this.freeSlots = new int[slotCount];
+        clearSlots();
+
+        final long length = ((long) slotCount) * slotSize;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            raf.close();
+            raf = null;
+            throw e;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns size of the file in bytes.
+     */
+    public long getMaxBytes() {
+        return ((long) slotCount) * slotSize;
+    }
+
+    public synchronized int getTileCount() {
+        return index.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return buffer == null;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Cache staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns new bitmap with pixels of the cached tile, or NULL if the tile is not cached.
+     *
+     * @param imageKey  key of the image
+     * @param tileKey   key of the tile inside the image
+     */
+    public synchronized Bitmap get(String imageKey, long tileKey) {
+        final Slot slot = buffer == null ? null : index.get(makeKey(imageKey, tileKey));
+        if (slot == null) {
+            missCount++;
+            return null;
+        }
+
+        try {
+            final Bitmap tile = Bitmap.createBitmap(slot.width, slot.height, slot.config);
+            tile.copyPixelsFromBuffer(slice(slot));
+            hitCount++;
+            return tile;
+        } catch (Exception e) {
+            LogUtil.e(MappedTileCache.class, "Tile reading failed: " + e);
+        } catch (OutOfMemoryError e) {
+            LogUtil.e(MappedTileCache.class, "Tile reading failed: " + e);
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Copies pixels of the tile into the cache; bitmap itself is not kept.
+     *
+     * @param imageKey  key of the image
+     * @param tileKey   key of the tile inside the image
+     * @param tile      decoded tile
+     * @return TRUE, if the tile was cached
+     */
+    public synchronized boolean put(String imageKey, long tileKey, Bitmap tile) {
+        if (buffer == null || tile.getConfig() == null || tile.isRecycled())
+            return false;
+        if (tile.getRowBytes() * tile.getHeight() > slotSize)
+            return false;
+
+        final String key = makeKey(imageKey, tileKey);
+        Slot slot = index.remove(key);
+        if (slot == null) {
+            if (freeCount == 0) evictEldest();
+            slot = new Slot(imageKey, freeSlots[--freeCount]);
+        }
+
+        slot.width = tile.getWidth();
+        slot.height = tile.getHeight();
+        slot.config = tile.getConfig();
+
+        try {
+            tile.copyPixelsToBuffer(slice(slot));
+            index.put(key, slot);
+            return true;
+        } catch (Exception e) {
+            freeSlots[freeCount++] = slot.number;
+            LogUtil.e(MappedTileCache.class, "Tile writing failed: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Drops all tiles of the image.
+     */
+    public synchronized void remove(String imageKey) {
+        final Iterator<Slot> iterator = index.values().iterator();
+        while (iterator.hasNext()) {
+            final Slot slot = iterator.next();
+            if (slot.imageKey.equals(imageKey)) {
+                freeSlots[freeCount++] = slot.number;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all tiles; size of the file is not changed.
+     */
+    public synchronized void clear() {
+        index.clear();
+        clearSlots();
+    }
+
+    /**
+     * Drops all tiles, unmaps and deletes the file. Object could not be used after that.
+     */
+    public synchronized void close() {
+        clear();
+        buffer = null;
+
+        if (raf != null) {
+            try { raf.close(); }
+            catch (IOException e) { LogUtil.e(MappedTileCache.class, "Cache file closing failed: " + e); }
+            raf = null;
+        }
+
+        if (!file.delete())
+            LogUtil.e(MappedTileCache.class, "Cache file deleting failed: " + file);
+    }
+
+    /**
+     * Builds image key from file's path, size and modification time, so the old tiles are not
+     * used, if the file was changed.
+     */
+    public static String makeImageKey(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static String makeKey(String imageKey, long tileKey) {
+        return imageKey + "#" + Long.toHexString(tileKey);
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < slotCount; i++)
+            freeSlots[i] = slotCount - 1 - i;
+        freeCount = slotCount;
+    }
+
+    private void evictEldest() {
+        final Iterator<Map.Entry<String, Slot>> iterator = index.entrySet().iterator();
+        freeSlots[freeCount++] = iterator.next().getValue().number;
+        iterator.remove();
+    }
+
+    private ByteBuffer slice(Slot slot) {
+        final ByteBuffer ret = buffer.duplicate();
+        final int position = slot.number * slotSize;
+        ret.limit(position + slotSize);
+        ret.position(position);
+        return ret;
+    }
+
+    private static class Slot {
+        private final String imageKey;
+        private final int number;
+        private int width;
+        private int height;
+        private Bitmap.Config config;
+
+        private Slot(String imageKey, int number) {
+            this.imageKey = imageKey;
+            this.number = number;
+        }
+    }
+}
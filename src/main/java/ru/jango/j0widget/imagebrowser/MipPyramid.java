@@ -0,0 +1,300 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Mip pyramid of a bitmap: level 0 is the bitmap itself, every next level is a half-size copy
+ * of the previous one. When the bitmap is shown zoomed out, drawing from a level, that has
+ * about one pixel per screen pixel, is much cheaper, than downscaling the whole bitmap every
+ * frame (and with filtering it looks even better).
+ * <p/>
+ * Levels are built lazily on a background thread (shared with
+ * {@link ru.jango.j0widget.imagebrowser.ImageLoader}), when they are requested by
+ * {@link #getLevelFor(double)}; until then the closest bigger level is returned. Memory, taken
+ * by the built levels, is bounded by {@link #getMaxBytes()}; levels could be released at any
+ * moment by {@link #releaseLevels()} and would be rebuilt when needed again.
+ * <p/>
+ * All the methods should be called on main thread; source bitmap is not recycled by the
+ * pyramid, unless it's asked to by {@link #release(boolean)}. Bitmaps, that are read by the
+ * building at the moment, are recycled only after it finishes.
+ */
+public class MipPyramid {
+
+    public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final int MAX_LEVEL = 8;
+
+    private final Bitmap source;
+    private final Bitmap[] levels;
+    private final int bytesPerPixel;
+    private final Handler mainThreadHandler;
+    private long maxBytes;
+    private PyramidListener listener;
+
+    private int buildingLevel;
+    // bitmap, that levels are being built from on the background thread; if it should be
+    // recycled meanwhile, it's recycled only when the building is finished
+    private Bitmap buildingFrom;
+    private boolean recycleAfterBuild;
+    private volatile boolean released;
+
+    public MipPyramid(Bitmap source) {
+        this(source, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param source    level 0 of the pyramid
+     * @param maxBytes  max summary size of the built levels (level 0 is not counted)
+     */
+    public MipPyramid(Bitmap source, long maxBytes) {
+        this.source = source;
+        this.maxBytes = maxBytes;
+        this.bytesPerPixel = Math.max(1, source.getRowBytes() / Math.max(1, source.getWidth()));
+        this.mainThreadHandler = new Handler();
+
+        int count = 1;
+        while (count <= MAX_LEVEL && (source.getWidth() >> count) > 0 && (source.getHeight() >> count) > 0)
+            count++;
+
+        this.levels = new Bitmap[count];
+        this.levels[0] = source;
+        this.buildingLevel = -1;
+        this.released = false;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public Bitmap getSource() {
+        return source;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets max summary size of the built levels; already built levels are not released.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns summary size of the built levels (level 0 is not counted).
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (int i = 1; i < levels.length; i++)
+            if (levels[i] != null)
+                bytes += levels[i].getRowBytes() * levels[i].getHeight();
+
+        return bytes;
+    }
+
+    public PyramidListener getPyramidListener() {
+        return listener;
+    }
+
+    public void setPyramidListener(PyramidListener listener) {
+        this.listener = listener;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Levels staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the smallest level, that still has at least one pixel per destination pixel.
+     * If that level is not built yet, it's scheduled for building and the closest bigger built
+     * level is returned.
+     *
+     * @param scaleFactor   number of source pixels per destination pixel
+     */
+    public Bitmap getLevelFor(double scaleFactor) {
+        int level = 0;
+        while (level + 1 < levels.length && (1 << (level + 1)) <= scaleFactor)
+            level++;
+
+        return getLevel(level);
+    }
+
+    /**
+     * Returns the level, or the closest bigger built one, if it's not built yet (building is
+     * scheduled in that case).
+     */
+    public Bitmap getLevel(int level) {
+        level = Math.max(0, Math.min(level, levels.length - 1));
+        if (levels[level] == null)
+            scheduleBuild(level);
+
+        while (levels[level] == null)
+            level--;
+
+        return levels[level];
+    }
+
+    public boolean isLevelBuilt(int level) {
+        return level >= 0 && level < levels.length && levels[level] != null;
+    }
+
+    /**
+     * Recycles all built levels, except level 0; they would be rebuilt, when needed again.
+     */
+    public void releaseLevels() {
+        for (int i = 1; i < levels.length; i++) {
+            if (levels[i] != null) recycleLevel(levels[i]);
+            levels[i] = null;
+        }
+    }
+
+    /**
+     * Releases levels and stops building; pyramid couldn't be used any more. Source bitmap is
+     * not recycled.
+     */
+    public void release() {
+        release(false);
+    }
+
+    /**
+     * Releases levels and stops building; pyramid couldn't be used any more.
+     *
+     * @param recycleSource if TRUE, source bitmap is recycled too - right now, or when the
+     *                      running building finishes, if it reads the source at the moment
+     */
+    public void release(boolean recycleSource) {
+        released = true;
+        releaseLevels();
+        if (recycleSource) recycleLevel(source);
+    }
+
+    private void recycleLevel(Bitmap bmp) {
+        if (bmp == buildingFrom) recycleAfterBuild = true;
+        else bmp.recycle();
+    }
+
+    private void scheduleBuild(final int level) {
+        if (released || buildingLevel != -1)
+            return;
+
+        // every level is built from the previous one; start from the closest built level
+        int from = level;
+        while (levels[from] == null)
+            from--;
+
+        final int startLevel = from;
+        final Bitmap start = levels[from];
+        final int count = countAffordableLevels(startLevel, level);
+        if (count == 0)
+            return;
+
+        buildingLevel = level;
+        buildingFrom = start;
+        ImageLoader.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap[] built = new Bitmap[count];
+                try {
+                    Bitmap prev = start;
+                    for (int i = 0; i < count && !released; i++) {
+                        built[i] = Bitmap.createScaledBitmap(prev,
+                                Math.max(1, prev.getWidth() / 2), Math.max(1, prev.getHeight() / 2), true);
+                        prev = built[i];
+                    }
+                } catch (Throwable e) {
+                    // source could be recycled meanwhile, or memory is over - levels would be
+                    // just missing
+                    LogUtil.e(MipPyramid.class, "Level building failed: " + e);
+                }
+
+                postLevels(startLevel, built);
+            }
+        });
+    }
+
+    /**
+     * Returns how many levels after startLevel (up to the specified one) fit into the memory
+     * bounds.
+     */
+    private int countAffordableLevels(int startLevel, int level) {
+        long bytes = getBytes();
+        int count = 0;
+        for (int i = startLevel + 1; i <= level; i++) {
+            final long levelBytes = ((long) (source.getWidth() >> i)) * (source.getHeight() >> i) * bytesPerPixel;
+            if (bytes + levelBytes > maxBytes)
+                break;
+
+            bytes += levelBytes;
+            count++;
+        }
+
+        return count;
+    }
+
+    private void postLevels(final int startLevel, final Bitmap[] built) {
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                buildingLevel = -1;
+                if (recycleAfterBuild) buildingFrom.recycle();
+                buildingFrom = null;
+                recycleAfterBuild = false;
+
+                boolean installed = false;
+                for (int i = 0; i < built.length; i++) {
+                    if (built[i] == null) continue;
+
+                    final int level = startLevel + 1 + i;
+                    if (released || levels[level] != null) built[i].recycle();
+                    else {
+                        levels[level] = built[i];
+                        installed = true;
+                    }
+                }
+
+                if (installed && listener != null)
+                    listener.onLevelsBuilt(MipPyramid.this);
+            }
+        });
+    }
+
+    public interface PyramidListener {
+
+        /**
+         * New levels are ready; called on main thread.
+         */
+        public void onLevelsBuilt(MipPyramid pyramid);
+    }
+}
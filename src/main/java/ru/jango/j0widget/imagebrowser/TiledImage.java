@@ -0,0 +1,444 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package ru.jango.j0widget.imagebrowser;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.jango.j0util.LogUtil;
+
+/**
+ * Huge image, that is shown by {@link ru.jango.j0widget.imagebrowser.ImageBrowserView} by
+ * tiles. Only tiles, that intersect the viewport, are decoded by
+ * {@link android.graphics.BitmapRegionDecoder}, and with sample size, that matches the current
+ * zoom, so memory usage doesn't depend on image size.
+ * <p/>
+ * Decoding is done on a worker thread: first the low resolution base layer (see
+ * {@link #requestBase(int, int)}), that is shown while tiles load, than tiles. Requests, that are
+ * not visible any more, are dropped. Worker thread exits, when there is nothing to decode, and
+ * is started again by new requests. Decoded tiles are kept in LRU cache, that is bounded by
+ * bytes. Results are delivered into {@link TileListener} on main thread.
+ * <p/>
+ * Optionally tiles could be also kept in {@link ru.jango.j0widget.imagebrowser.MappedTileCache}
+ * (see {@link #setDiskCache(MappedTileCache, String)}): tiles, that were dropped from memory, are
+ * copied from it instead of decoding again.
+ * <p/>
+ * Object should be created on main thread.
+ */
+public class TiledImage {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    // max sample level is 2^MAX_LEVEL
+    private static final int MAX_LEVEL = 16;
+
+    // how long idle worker waits for new requests before exiting
+    private static final long WORKER_KEEP_ALIVE = 3000;
+
+    private final BitmapRegionDecoder decoder;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final LruCache<Long, Bitmap> cache;
+    private final Handler mainThreadHandler;
+    private TileListener listener;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final List<Long> requests = new ArrayList<Long>();
+    private int baseMaxWidth;
+    private int baseMaxHeight;
+    private volatile boolean released;
+    private Thread worker;
+    private MappedTileCache diskCache;
+    private String diskCacheKey;
+
+    // only for main thread
+    private final Rect tileRect = new Rect();
+    private final RectF tileDest = new RectF();
+    private final List<Long> missing = new ArrayList<Long>();
+
+    public TiledImage(BitmapRegionDecoder decoder) {
+        this(decoder, DEFAULT_TILE_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param decoder   decoder of the image; it would be recycled in {@link #release()}
+     * @param tileSize  side of a tile in decoded pixels
+     * @param cacheSize max size of decoded tiles cache in bytes
+     */
+    public TiledImage(BitmapRegionDecoder decoder, int tileSize, int cacheSize) {
+        this.decoder = decoder;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.tileSize = Math.max(16, tileSize);
+        this.mainThreadHandler = new Handler();
+        this.cache = new LruCache<Long, Bitmap>(Math.max(1, cacheSize)) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public TileListener getTileListener() {
+        return listener;
+    }
+
+    public void setTileListener(TileListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets second level cache for decoded tiles. It's not closed by {@link #release()}, so it
+     * could be shared between several images.
+     *
+     * @param diskCache cache of tiles; may be NULL
+     * @param imageKey  key of the image in the cache, that should change, when the image changes
+     *                  (see {@link ru.jango.j0widget.imagebrowser.MappedTileCache#makeImageKey(java.io.File)});
+     *                  if NULL, cache is not used
+     */
+    public void setDiskCache(MappedTileCache diskCache, String imageKey) {
+        synchronized (lock) {
+            this.diskCache = imageKey == null ? null : diskCache;
+            this.diskCacheKey = imageKey;
+        }
+    }
+
+    public MappedTileCache getDiskCache() {
+        synchronized (lock) {
+            return diskCache;
+        }
+    }
+
+    /**
+     * Drops all decoded tiles from memory; disk cache is not touched.
+     */
+    public void clearCache() {
+        cache.evictAll();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Tiles staff
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Returns sample size for decoding, that gives not less details, than the screen shows.
+     *
+     * @param scaleFactor   image pixels per screen pixel
+     */
+    public static int getSampleSize(double scaleFactor) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= scaleFactor && sampleSize < (1 << MAX_LEVEL))
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    /**
+     * Requests decoding of the base layer, that fits into the specified size. Result is passed
+     * into {@link TileListener#onBaseDecoded(android.graphics.Bitmap)}.
+     */
+    public void requestBase(int maxWidth, int maxHeight) {
+        synchronized (lock) {
+            baseMaxWidth = Math.max(1, maxWidth);
+            baseMaxHeight = Math.max(1, maxHeight);
+            startWorker();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Draws decoded tiles, that intersect the viewport, and requests decoding of missing ones.
+     * Should be called on main thread.
+     *
+     * @param canvas        canvas to draw on
+     * @param viewport      visible part of the image in image pixels
+     * @param dest          where the viewport is drawn on the canvas
+     * @param sampleSize    sample size of tiles; see {@link #getSampleSize(double)}
+     * @param paint         paint for drawing tiles; may be NULL
+     * @return TRUE, if all the visible tiles were drawn
+     */
+    public boolean draw(Canvas canvas, Rect viewport, Rect dest, int sampleSize, Paint paint) {
+        final int level = Integer.numberOfTrailingZeros(sampleSize);
+        final int span = tileSize * sampleSize;
+        final float scaleX = ((float) dest.width()) / Math.max(1, viewport.width());
+        final float scaleY = ((float) dest.height()) / Math.max(1, viewport.height());
+
+        final int firstCol = Math.max(0, viewport.left / span);
+        final int lastCol = Math.min((width - 1) / span, (viewport.right - 1) / span);
+        final int firstRow = Math.max(0, viewport.top / span);
+        final int lastRow = Math.min((height - 1) / span, (viewport.bottom - 1) / span);
+
+        missing.clear();
+        for (int row = firstRow; row <= lastRow; row++)
+            for (int col = firstCol; col <= lastCol; col++) {
+                final long key = makeKey(level, col, row);
+                final Bitmap tile = cache.get(key);
+                if (tile == null) {
+                    missing.add(key);
+                    continue;
+                }
+
+                getTileRect(level, col, row, tileRect);
+                tileDest.set(dest.left + (tileRect.left - viewport.left) * scaleX,
+                        dest.top + (tileRect.top - viewport.top) * scaleY,
+                        dest.left + (tileRect.right - viewport.left) * scaleX,
+                        dest.top + (tileRect.bottom - viewport.top) * scaleY);
+                canvas.drawBitmap(tile, null, tileDest, paint);
+            }
+
+        synchronized (lock) {
+            requests.clear();
+            requests.addAll(missing);
+            if (!requests.isEmpty()) {
+                startWorker();
+                lock.notifyAll();
+            }
+        }
+
+        return missing.isEmpty();
+    }
+
+    /**
+     * Drops pending tile requests; if the worker has nothing else to decode, it exits at once.
+     * Should be called, when the image is not shown any more (for example, when the view is
+     * detached) - drawing would start decoding again.
+     */
+    public void cancelRequests() {
+        synchronized (lock) {
+            requests.clear();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops decoding, drops the cache and recycles the decoder. Object could not be used after that.
+     */
+    public void release() {
+        synchronized (lock) {
+            requests.clear();
+            baseMaxWidth = 0;
+            released = true;
+            lock.notifyAll();
+
+            // decoder is recycled by the worker, if it's decoding now
+            if (worker == null) decoder.recycle();
+        }
+
+        cache.evictAll();
+    }
+
+    private static long makeKey(int level, int col, int row) {
+        return (((long) level) << 56) | (((long) col) << 28) | row;
+    }
+
+    private void getTileRect(int level, int col, int row, Rect ret) {
+        final int span = tileSize << level;
+        ret.set(col * span, row * span, Math.min(width, (col + 1) * span), Math.min(height, (row + 1) * span));
+    }
+
+    // should be called under lock
+    private void startWorker() {
+        if (worker != null || released) return;
+
+        worker = new Thread(new Worker(), TiledImage.class.getSimpleName());
+        worker.start();
+    }
+
+    private class Worker implements Runnable {
+
+        private final Rect rect = new Rect();
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            boolean exited = false;
+            try {
+                while (true) {
+                    int maxWidth = 0;
+                    int maxHeight = 0;
+                    long key = -1;
+                    MappedTileCache mapped;
+                    String mappedKey;
+
+                    synchronized (lock) {
+                        if (!released && baseMaxWidth == 0 && requests.isEmpty()) {
+                            try { lock.wait(WORKER_KEEP_ALIVE); }
+                            catch (InterruptedException ignored) { }
+                        }
+
+                        // exiting should be decided under the same lock, as starting, so no
+                        // request is left without a worker
+                        if (released || (baseMaxWidth == 0 && requests.isEmpty())) {
+                            exited = true;
+                            finish();
+                            return;
+                        }
+
+                        if (baseMaxWidth != 0) {
+                            maxWidth = baseMaxWidth;
+                            maxHeight = baseMaxHeight;
+                            baseMaxWidth = 0;
+                        } else key = requests.remove(0);
+
+                        mapped = diskCache;
+                        mappedKey = diskCacheKey;
+                    }
+
+                    if (key == -1) decodeBase(maxWidth, maxHeight);
+                    else if (cache.get(key) == null) decodeTile(key, mapped, mappedKey);
+                }
+            } finally {
+                if (!exited)
+                    synchronized (lock) {
+                        finish();
+                    }
+            }
+        }
+
+        // should be called under lock
+        private void finish() {
+            worker = null;
+            if (released) decoder.recycle();
+        }
+
+        private void decodeBase(int maxWidth, int maxHeight) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (width / (options.inSampleSize * 2) >= maxWidth || height / (options.inSampleSize * 2) >= maxHeight)
+                options.inSampleSize *= 2;
+
+            try {
+                rect.set(0, 0, width, height);
+                final Bitmap base = decoder.decodeRegion(rect, options);
+                if (base != null)
+                    postBase(base);
+            } catch (Exception e) {
+                LogUtil.e(TiledImage.class, "Base layer decoding failed: " + e);
+            } catch (OutOfMemoryError e) {
+                LogUtil.e(TiledImage.class, "Base layer decoding failed: " + e);
+            }
+        }
+
+        private void decodeTile(long key, MappedTileCache mapped, String mappedKey) {
+            final Bitmap cached = mapped != null ? mapped.get(mappedKey, key) : null;
+            if (cached != null) {
+                cache.put(key, cached);
+                postTile();
+                return;
+            }
+
+            final int level = (int) (key >>> 56);
+            final int col = (int) ((key >>> 28) & 0xfffffff);
+            final int row = (int) (key & 0xfffffff);
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1 << level;
+            getTileRect(level, col, row, rect);
+
+            try {
+                final Bitmap tile = decoder.decodeRegion(rect, options);
+                if (tile == null)
+                    return;
+
+                cache.put(key, tile);
+                postTile();
+
+                if (mapped != null)
+                    mapped.put(mappedKey, key, tile);
+            } catch (Exception e) {
+                LogUtil.e(TiledImage.class, "Tile decoding failed: " + e);
+            } catch (OutOfMemoryError e) {
+                cache.evictAll();
+                LogUtil.e(TiledImage.class, "Tile decoding failed: " + e);
+            }
+        }
+    }
+
+    private void postBase(final Bitmap base) {
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null && !released)
+                    listener.onBaseDecoded(base);
+            }
+        });
+    }
+
+    private void postTile() {
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null && !released)
+                    listener.onTileDecoded();
+            }
+        });
+    }
+
+    public interface TileListener {
+
+        /**
+         * Is called on main thread, when the base layer is decoded.
+         *
+         * @param base  whole image with reduced resolution
+         */
+        public void onBaseDecoded(Bitmap base);
+
+        /**
+         * Is called on main thread, when one more tile is decoded and could be drawn.
+         */
+        public void onTileDecoded();
+    }
+}
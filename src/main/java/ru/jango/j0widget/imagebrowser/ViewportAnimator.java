@@ -0,0 +1,264 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+/**
+ * Animates {@link ru.jango.j0widget.imagebrowser.ViewportTransform} by frame timestamps: fling,
+ * zoom to a point (double tap) and zoom momentum after a pinch. All running animations are
+ * advanced together by {@link #step(long)} with the same frame time in nanoseconds (usually
+ * from {@link android.view.Choreographer}), so they never drift from each other or from the
+ * frames, and the result doesn't depend on the frame rate.
+ * <p/>
+ * Fling and zoom momentum decay exponentially with the configured time constants. Class is
+ * pure Java and doesn't allocate anything; it's not thread safe.
+ */
+public class ViewportAnimator {
+
+    public static final long DEFAULT_FLING_TIME_CONSTANT = 325;
+    public static final long DEFAULT_ZOOM_MOMENTUM_TIME_CONSTANT = 150;
+    public static final long DEFAULT_ZOOM_DURATION = 200;
+
+    /**
+     * Fling stops, when velocity (view pixels per second) falls below this value.
+     */
+    private static final float MIN_FLING_VELOCITY = 10f;
+
+    /**
+     * Zoom momentum stops, when it's velocity (natural logarithm of scale per second) falls
+     * below this value.
+     */
+    private static final float MIN_ZOOM_VELOCITY = 0.02f;
+
+    private final ViewportTransform transform;
+    private long flingTimeConstant;
+    private long zoomMomentumTimeConstant;
+
+    private long lastFrameNanos;
+
+    private boolean flinging;
+    private float flingVelocityX;
+    private float flingVelocityY;
+
+    private boolean zooming;
+    private long zoomStartNanos;
+    private long zoomDurationNanos;
+    private float zoomStartScale;
+    private float zoomEndScale;
+    private float zoomStartX;
+    private float zoomStartY;
+    private float zoomFocusX;
+    private float zoomFocusY;
+
+    private boolean zoomMomentum;
+    private float zoomVelocity;
+    private float momentumFocusX;
+    private float momentumFocusY;
+
+    public ViewportAnimator(ViewportTransform transform) {
+        this.transform = transform;
+        this.flingTimeConstant = DEFAULT_FLING_TIME_CONSTANT;
+        this.zoomMomentumTimeConstant = DEFAULT_ZOOM_MOMENTUM_TIME_CONSTANT;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public ViewportTransform getTransform() {
+        return transform;
+    }
+
+    public long getFlingTimeConstant() {
+        return flingTimeConstant;
+    }
+
+    /**
+     * Sets time in milliseconds, during which fling velocity falls e times.
+     */
+    public void setFlingTimeConstant(long millis) {
+        this.flingTimeConstant = Math.max(1, millis);
+    }
+
+    public long getZoomMomentumTimeConstant() {
+        return zoomMomentumTimeConstant;
+    }
+
+    /**
+     * Sets time in milliseconds, during which zoom momentum velocity falls e times.
+     */
+    public void setZoomMomentumTimeConstant(long millis) {
+        this.zoomMomentumTimeConstant = Math.max(1, millis);
+    }
+
+    public boolean isRunning() {
+        return flinging || zooming || zoomMomentum;
+    }
+
+    public boolean isFlinging() {
+        return flinging;
+    }
+
+    public boolean isZooming() {
+        return zooming || zoomMomentum;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Animations
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Starts fling; stops zoom animation, but not zoom momentum.
+     *
+     * @param velocityX     velocity of the image in view pixels per second
+     * @param velocityY     velocity of the image in view pixels per second
+     * @param nowNanos      current time in {@link System#nanoTime()} base
+     */
+    public void startFling(float velocityX, float velocityY, long nowNanos) {
+        zooming = false;
+        start(nowNanos);
+        flingVelocityX = velocityX;
+        flingVelocityY = velocityY;
+        flinging = true;
+    }
+
+    /**
+     * Zooms the image to the specified scale, moving the focus point into the center of the
+     * view. Stops other animations.
+     *
+     * @param focusX    focus point in view coordinates
+     * @param focusY    focus point in view coordinates
+     * @param scale     target scale; it's limited by the transform
+     * @param duration  duration in milliseconds
+     * @param nowNanos  current time in {@link System#nanoTime()} base
+     */
+    public void startZoom(float focusX, float focusY, float scale, long duration, long nowNanos) {
+        stop();
+        start(nowNanos);
+        zoomStartNanos = nowNanos;
+        zoomDurationNanos = Math.max(1, duration) * 1000000L;
+        zoomStartScale = transform.getScale();
+        zoomEndScale = scale;
+        zoomStartX = transform.toImageX(transform.getViewWidth() / 2f);
+        zoomStartY = transform.toImageY(transform.getViewHeight() / 2f);
+        zoomFocusX = transform.toImageX(focusX);
+        zoomFocusY = transform.toImageY(focusY);
+        zooming = true;
+    }
+
+    /**
+     * Continues zooming after a pinch with decaying velocity.
+     *
+     * @param velocity  natural logarithm of scale change per second (positive - zoom in)
+     * @param focusX    focus point in view coordinates
+     * @param focusY    focus point in view coordinates
+     * @param nowNanos  current time in {@link System#nanoTime()} base
+     */
+    public void startZoomMomentum(float velocity, float focusX, float focusY, long nowNanos) {
+        zooming = false;
+        if (Math.abs(velocity) < MIN_ZOOM_VELOCITY)
+            return;
+
+        start(nowNanos);
+        zoomVelocity = velocity;
+        momentumFocusX = focusX;
+        momentumFocusY = focusY;
+        zoomMomentum = true;
+    }
+
+    public void stop() {
+        flinging = false;
+        zooming = false;
+        zoomMomentum = false;
+    }
+
+    /**
+     * Should be called before the new animation is marked as running: if other animations are
+     * running, they keep their time.
+     */
+    private void start(long nowNanos) {
+        if (!isRunning())
+            lastFrameNanos = nowNanos;
+    }
+
+    /**
+     * Advances all running animations to the frame time.
+     *
+     * @param frameTimeNanos    frame time in {@link System#nanoTime()} base
+     * @return TRUE, if some animation is still running and the next frame is needed
+     */
+    public boolean step(long frameTimeNanos) {
+        final float dt = Math.max(0, frameTimeNanos - lastFrameNanos) / 1000000000f;
+        lastFrameNanos = Math.max(lastFrameNanos, frameTimeNanos);
+
+        if (zooming) stepZoom(frameTimeNanos);
+        if (zoomMomentum) stepZoomMomentum(dt);
+        if (flinging) stepFling(dt);
+
+        return isRunning();
+    }
+
+    private void stepZoom(long frameTimeNanos) {
+        final float t = Math.min(1f, Math.max(0, frameTimeNanos - zoomStartNanos) / (float) zoomDurationNanos);
+        final float progress = 1f - (1f - t) * (1f - t);
+
+        transform.setCenter(zoomStartX + (zoomFocusX - zoomStartX) * progress,
+                zoomStartY + (zoomFocusY - zoomStartY) * progress,
+                (float) (zoomStartScale * Math.pow(zoomEndScale / zoomStartScale, progress)));
+
+        if (t >= 1f) zooming = false;
+    }
+
+    private void stepZoomMomentum(float dt) {
+        // exact integral of exponentially decaying velocity over dt
+        final float tau = zoomMomentumTimeConstant / 1000f;
+        final float decay = (float) Math.exp(-dt / tau);
+        final float scaleBefore = transform.getScale();
+
+        transform.zoomBy((float) Math.exp(zoomVelocity * tau * (1f - decay)), momentumFocusX, momentumFocusY);
+        zoomVelocity *= decay;
+
+        // stops at scale limits
+        if (Math.abs(zoomVelocity) < MIN_ZOOM_VELOCITY || (dt > 0 && transform.getScale() == scaleBefore))
+            zoomMomentum = false;
+    }
+
+    private void stepFling(float dt) {
+        final float tau = flingTimeConstant / 1000f;
+        final float decay = (float) Math.exp(-dt / tau);
+        final float targetX = transform.getTranslationX() + flingVelocityX * tau * (1f - decay);
+        final float targetY = transform.getTranslationY() + flingVelocityY * tau * (1f - decay);
+
+        transform.setTranslation(targetX, targetY);
+        flingVelocityX *= decay;
+        flingVelocityY *= decay;
+
+        // the image has reached it's edge
+        if (Math.abs(transform.getTranslationX() - targetX) > 0.5f) flingVelocityX = 0;
+        if (Math.abs(transform.getTranslationY() - targetY) > 0.5f) flingVelocityY = 0;
+
+        if (Math.abs(flingVelocityX) < MIN_FLING_VELOCITY && Math.abs(flingVelocityY) < MIN_FLING_VELOCITY)
+            flinging = false;
+    }
+}
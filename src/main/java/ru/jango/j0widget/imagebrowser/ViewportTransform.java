@@ -0,0 +1,298 @@
+/*
+ * The MIT License Copyright (c) 2014 Krayushkin Konstantin (jangokvk@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT
+ * NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package ru.jango.j0widget.imagebrowser;
+
+/**
+ * Position of an image inside a view, used by
+ * {@link ru.jango.j0widget.imagebrowser.ImageBrowserView}: image is scaled by {@link #getScale()}
+ * (view pixels per image pixel) and it's top left corner is translated to
+ * ({@link #getTranslationX()}, {@link #getTranslationY()}) in view coordinates. That is,
+ * viewX = imageX * scale + translationX.
+ * <p/>
+ * Every change keeps the transform in acceptable range:
+ * <ul>
+ * <li>scale is between {@link #getMinScale()} (the whole image fits the view) and
+ * {@link #getMaxScale()} (min scale multiplied by {@link #getMaxZoom()})</li>
+ * <li>image, that is smaller than the view, is centered; bigger image always covers the view</li>
+ * </ul>
+ * Class is pure Java (doesn't depend on Android) and doesn't allocate anything, so it could be
+ * driven by JVM tests and benchmarks. It's not thread safe.
+ */
+public class ViewportTransform {
+
+    public static final float DEFAULT_MAX_ZOOM = 15f;
+
+    private int imageWidth;
+    private int imageHeight;
+    private int viewWidth;
+    private int viewHeight;
+    private float maxZoom;
+
+    private float scale;
+    private float translationX;
+    private float translationY;
+
+    public ViewportTransform() {
+        this.maxZoom = DEFAULT_MAX_ZOOM;
+        this.scale = 1f;
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Getters and setters
+    //
+    ///////////////////////////////////////////////////////////////
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * Sets new image size and shows the whole image.
+     */
+    public void setImageSize(int width, int height) {
+        this.imageWidth = Math.max(0, width);
+        this.imageHeight = Math.max(0, height);
+        reset();
+    }
+
+    /**
+     * Sets new image size, keeping the same part of the image visible - for example, when the
+     * image is replaced by it's copy of another resolution.
+     */
+    public void rescaleImage(int width, int height) {
+        if (imageWidth == 0 || width <= 0 || height <= 0) {
+            setImageSize(width, height);
+            return;
+        }
+
+        scale *= ((float) imageWidth) / width;
+        imageWidth = width;
+        imageHeight = height;
+        clamp();
+    }
+
+    public int getViewWidth() {
+        return viewWidth;
+    }
+
+    public int getViewHeight() {
+        return viewHeight;
+    }
+
+    /**
+     * Sets new view size, keeping zoom (relatively to the min scale) and the image point in the
+     * view center.
+     */
+    public void setViewSize(int width, int height) {
+        width = Math.max(0, width);
+        height = Math.max(0, height);
+        if (viewWidth == 0 || viewHeight == 0 || isEmpty()) {
+            viewWidth = width;
+            viewHeight = height;
+            reset();
+            return;
+        }
+
+        final float zoom = scale / getMinScale();
+        final float centerX = toImageX(viewWidth / 2f);
+        final float centerY = toImageY(viewHeight / 2f);
+
+        viewWidth = width;
+        viewHeight = height;
+        setCenter(centerX, centerY, getMinScale() * zoom);
+    }
+
+    public float getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Sets max scale relatively to the min scale.
+     */
+    public void setMaxZoom(float maxZoom) {
+        this.maxZoom = Math.max(1f, maxZoom);
+        clamp();
+    }
+
+    /**
+     * Returns TRUE, if image or view size is not set.
+     */
+    public boolean isEmpty() {
+        return imageWidth == 0 || imageHeight == 0;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns number of image pixels per view pixel.
+     */
+    public float getScaleFactor() {
+        return 1f / scale;
+    }
+
+    public float getTranslationX() {
+        return translationX;
+    }
+
+    public float getTranslationY() {
+        return translationY;
+    }
+
+    /**
+     * Returns scale, at which the whole image fits the view.
+     */
+    public float getMinScale() {
+        if (isEmpty() || viewWidth == 0 || viewHeight == 0)
+            return 1f;
+
+        return Math.min(((float) viewWidth) / imageWidth, ((float) viewHeight) / imageHeight);
+    }
+
+    public float getMaxScale() {
+        return getMinScale() * maxZoom;
+    }
+
+    /**
+     * Returns TRUE, if the whole image is shown.
+     */
+    public boolean isZoomedOut() {
+        return scale <= getMinScale();
+    }
+
+    ///////////////////////////////////////////////////////////////
+    //
+    // 					Transformations
+    //
+    ///////////////////////////////////////////////////////////////
+
+    /**
+     * Shows the whole image.
+     */
+    public void reset() {
+        scale = getMinScale();
+        translationX = 0;
+        translationY = 0;
+        clamp();
+    }
+
+    /**
+     * Moves the image by the specified distance in view pixels; positive distance moves the
+     * image to the left (or to the top) - like scroll gestures report it.
+     */
+    public void scrollBy(float distanceX, float distanceY) {
+        translationX -= distanceX;
+        translationY -= distanceY;
+        clamp();
+    }
+
+    /**
+     * Moves the image to the specified translation.
+     */
+    public void setTranslation(float x, float y) {
+        translationX = x;
+        translationY = y;
+        clamp();
+    }
+
+    /**
+     * Multiplies the scale by the factor, keeping the specified view point on it's place.
+     */
+    public void zoomBy(float factor, float focusX, float focusY) {
+        final float newScale = clampScale(scale * factor);
+        final float ratio = newScale / scale;
+
+        translationX = focusX - (focusX - translationX) * ratio;
+        translationY = focusY - (focusY - translationY) * ratio;
+        scale = newScale;
+        clamp();
+    }
+
+    /**
+     * Sets the scale and places the specified image point into the center of the view.
+     */
+    public void setCenter(float imageX, float imageY, float scale) {
+        this.scale = clampScale(scale);
+        translationX = viewWidth / 2f - imageX * this.scale;
+        translationY = viewHeight / 2f - imageY * this.scale;
+        clamp();
+    }
+
+    public float toImageX(float viewX) {
+        return (viewX - translationX) / scale;
+    }
+
+    public float toImageY(float viewY) {
+        return (viewY - translationY) / scale;
+    }
+
+    public float toViewX(float imageX) {
+        return imageX * scale + translationX;
+    }
+
+    public float toViewY(float imageY) {
+        return imageY * scale + translationY;
+    }
+
+    /**
+     * Returns min translation, that is allowed for the current scale; max translation is 0, if
+     * the image is bigger, than the view. Smaller image is always centered.
+     */
+    public float getMinTranslationX() {
+        return Math.min(0, viewWidth - imageWidth * scale);
+    }
+
+    public float getMinTranslationY() {
+        return Math.min(0, viewHeight - imageHeight * scale);
+    }
+
+    /**
+     * Returns TRUE, if the image could be moved horizontally so, that more of it's left part
+     * (direction < 0) or right part (direction > 0) would be visible.
+     */
+    public boolean canScrollHorizontally(int direction) {
+        if (isEmpty()) return false;
+
+        return direction < 0 ? translationX < 0 : translationX > getMinTranslationX();
+    }
+
+    private float clampScale(float scale) {
+        return Math.max(getMinScale(), Math.min(scale, getMaxScale()));
+    }
+
+    private void clamp() {
+        scale = clampScale(scale);
+
+        final float width = imageWidth * scale;
+        if (width <= viewWidth) translationX = (viewWidth - width) / 2f;
+        else translationX = Math.max(viewWidth - width, Math.min(translationX, 0));
+
+        final float height = imageHeight * scale;
+        if (height <= viewHeight) translationY = (viewHeight - height) / 2f;
+        else translationY = Math.max(viewHeight - height, Math.min(translationY, 0));
+    }
+}
@@ -25,7 +25,11 @@ import android.view.animation.Interpolator;
 /**
  * A simple class that animates double-touch zoom gestures. Functionally similar to a {@link
  * android.widget.Scroller}.
+ *
+ * @deprecated {@link ru.jango.j0widget.imagebrowser.ImageBrowserView} doesn't use it any more;
+ * use {@link ru.jango.j0widget.imagebrowser.ViewportAnimator} instead
  */
+@Deprecated
 public class Zoomer {
     /**
      * The interpolator, used for making zooms animate 'naturally.'